@@ -0,0 +1,405 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An asynchronous front end for a {@link Disk}.
+ *
+ * read() and write() only queue a request for a run of blocks and
+ * return a CompletableFuture, which a single worker thread completes
+ * once the blocks have been transferred. The worker takes every
+ * request queued so far as one batch and serves it in elevator
+ * order: ascending block numbers from where the previous transfer
+ * ended, then wrapping around to the lowest block (C-LOOK). Requests
+ * of the same kind that are adjacent on disk are merged into a single
+ * transfer. Since a batch is always served in full before the next
+ * one is taken, no request waits longer than one sweep, however many
+ * arrive after it.
+ *
+ * Requests that overlap and are not both reads complete in the order
+ * they were made: a batch ends at the first request that conflicts
+ * with an earlier one in it, so e.g. a read queued after a write of
+ * the same block sees the new data.
+ *
+ * Between plug() and unplug() requests are only queued, so that a
+ * caller can hand over a burst of them to be sorted and merged
+ * together.
+ *
+ * getQueueDepth() and getMergeRatio() tell how many requests are
+ * outstanding and how many of them each transfer served on average.
+ *
+ * An AsyncDisk is safe to use from several threads. The buffer of a
+ * request must not be touched until its future is complete.
+ */
+public class AsyncDisk {
+    public static final int MAX_MERGE = 256; // blocks per merged transfer
+
+    private final Disk disk;
+    private final LinkedBlockingQueue<Request> queue =
+        new LinkedBlockingQueue<Request>();
+    private final Thread worker;
+    private final AtomicInteger depth    = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong requests    = new AtomicLong();
+    private final AtomicLong transfers   = new AtomicLong();
+    private boolean plugged;
+    private boolean stopped;
+    private int     head;      // block after the last one transferred
+
+    // Wakes the worker up when the disk is unplugged or stopped
+    private static final Request WAKE = new Request(false, 0, 0, null);
+
+    /**
+     * A queued read or write of a run of blocks.
+     */
+    private static class Request {
+        final boolean write;
+        final int blocknum;
+        final int count;
+        final ByteBuffer buffer;  // the caller's bytes, from position
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Request(boolean write, int blocknum, int count, ByteBuffer buffer) {
+            this.write    = write;
+            this.blocknum = blocknum;
+            this.count    = count;
+            this.buffer   = buffer;
+        }
+
+        int end() {
+            return blocknum + count;
+        }
+    }
+
+    // Sorts a batch by block number, keeping the order of equal ones
+    private static final Comparator<Request> BY_BLOCK = new Comparator<Request>() {
+        public int compare(Request a, Request b) {
+            return Integer.compare(a.blocknum, b.blocknum);
+        }
+    };
+
+    /**
+     * Construct a new AsyncDisk in front of a disk, and start its
+     * worker thread.
+     */
+    public AsyncDisk(Disk disk) {
+        this.disk = disk;
+        worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, "async-disk");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a read of count consecutive blocks, starting at block
+     * blocknum, into the buffer from its position. The position of
+     * the buffer is left alone.
+     *
+     * @param  blocknum first block to read
+     * @param  count    number of blocks to read
+     * @param  buffer   buffer to read into; must have count *
+     *                  BLOCK_SIZE bytes remaining
+     * @return          a future completed once the blocks are in the
+     *                  buffer
+     * @throws RuntimeException if a block is out of range, if your
+     *                          buffer is too small or if the disk is
+     *                          stopped
+     */
+    public CompletableFuture<Void> read(int blocknum, int count, ByteBuffer buffer) {
+        return submit(false, blocknum, count, buffer);
+    }
+
+    /**
+     * Queue a read of count consecutive blocks into a byte array, like
+     * read(int, int, ByteBuffer).
+     *
+     * @param off offset in buffer of the first byte to read
+     */
+    public CompletableFuture<Void> read(int blocknum, int count, byte[] buffer, int off) {
+        return read(blocknum, count, wrap(count, buffer, off));
+    }
+
+    /**
+     * Queue a write of count consecutive blocks, starting at block
+     * blocknum, from the buffer at its position. The position of the
+     * buffer is left alone.
+     *
+     * @param  blocknum first block to write
+     * @param  count    number of blocks to write
+     * @param  buffer   buffer to write from; must have count *
+     *                  BLOCK_SIZE bytes remaining
+     * @return          a future completed once the blocks are written
+     *                  to the disk
+     * @throws RuntimeException if a block is out of range, if your
+     *                          buffer is too small or if the disk is
+     *                          stopped
+     */
+    public CompletableFuture<Void> write(int blocknum, int count, ByteBuffer buffer) {
+        return submit(true, blocknum, count, buffer);
+    }
+
+    /**
+     * Queue a write of count consecutive blocks from a byte array,
+     * like write(int, int, ByteBuffer).
+     *
+     * @param off offset in buffer of the first byte to write
+     */
+    public CompletableFuture<Void> write(int blocknum, int count, byte[] buffer, int off) {
+        return write(blocknum, count, wrap(count, buffer, off));
+    }
+
+    /**
+     * Hold requests in the queue until unplug() is called.
+     */
+    public synchronized void plug() {
+        plugged = true;
+    }
+
+    /**
+     * Let the worker serve the requests queued since plug().
+     */
+    public synchronized void unplug() {
+        plugged = false;
+        notifyAll();
+        queue.offer(WAKE);
+    }
+
+    /**
+     * Serve every outstanding request, then stop the worker thread.
+     * The disk itself is not stopped.
+     */
+    public void stop() {
+        synchronized(this) {
+            stopped = true;
+            plugged = false;
+            notifyAll();
+        }
+        queue.offer(WAKE);
+        try {
+            worker.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of requests made but not yet completed
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return largest number of requests that were ever outstanding
+     *         at once
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return average number of requests served by one transfer, 1 if
+     *         nothing was merged (or nothing was transferred yet)
+     */
+    public double getMergeRatio() {
+        long t = transfers.get();
+        return t == 0 ? 1.0 : (double)requests.get() / t;
+    }
+
+    /**
+     * @return number of requests completed
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of transfers made to the disk
+     */
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    public String toString() {
+        return "AsyncDisk: queue depth " + getQueueDepth() + " (max "
+            + getMaxQueueDepth() + "), " + getRequests() + " requests in "
+            + getTransfers() + " transfers";
+    }
+
+    private CompletableFuture<Void> submit(boolean write, int blocknum, int count,
+                                           ByteBuffer buffer) {
+        int size = disk.getBlockSize();
+        if(count < 1 || blocknum < 0 || blocknum > disk.getNumBlocks() - count)
+            throw new RuntimeException("Block range out of bounds: "
+                                       + blocknum + " + " + count);
+        if(buffer.remaining() < count * size)
+            throw new RuntimeException("Buffer too small: " + buffer.remaining()
+                                       + " < " + count * size);
+        Request request = new Request(write, blocknum, count, buffer.slice());
+        synchronized(this) {
+            if(stopped)
+                throw new RuntimeException("Async disk is stopped");
+            int d = depth.incrementAndGet();
+            if(d > maxDepth.get())
+                maxDepth.set(d);
+            queue.offer(request);
+        }
+        return request.done;
+    }
+
+    private ByteBuffer wrap(int count, byte[] buffer, int off) {
+        int size = disk.getBlockSize();
+        if(off < 0 || count < 0 || off > buffer.length - count * size)
+            throw new RuntimeException("Buffer too small: " + (buffer.length - off)
+                                       + " < " + count * size);
+        return ByteBuffer.wrap(buffer, off, count * size);
+    }
+
+    /**
+     * Body of the worker thread: take a batch of requests at a time
+     * and serve it, until the disk is stopped and nothing is left.
+     */
+    private void work() {
+        List<Request> pending = new ArrayList<Request>();
+        while(true) {
+            try {
+                if(pending.isEmpty()) {
+                    if(isStopped() && queue.isEmpty())
+                        return;
+                    pending.add(queue.take());
+                }
+                waitWhilePlugged();
+            } catch(InterruptedException e) {
+                return;
+            }
+            queue.drainTo(pending);
+            pending.removeAll(Collections.singleton(WAKE));
+            if(pending.isEmpty())
+                continue;
+            List<Request> batch = takeBatch(pending);
+            serve(batch);
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    private synchronized void waitWhilePlugged() throws InterruptedException {
+        while(plugged)
+            wait();
+    }
+
+    /**
+     * Remove from the front of pending the longest run of requests
+     * that can be served in any order: no write in it overlaps
+     * another request in it.
+     */
+    private static List<Request> takeBatch(List<Request> pending) {
+        BitSet read    = new BitSet();
+        BitSet written = new BitSet();
+        int n = 0;
+        for(; n < pending.size(); n++) {
+            Request r = pending.get(n);
+            if(written.nextSetBit(r.blocknum) >= 0 &&
+               written.nextSetBit(r.blocknum) < r.end())
+                break;
+            if(r.write && read.nextSetBit(r.blocknum) >= 0 &&
+               read.nextSetBit(r.blocknum) < r.end())
+                break;
+            (r.write ? written : read).set(r.blocknum, r.end());
+        }
+        List<Request> batch = new ArrayList<Request>(pending.subList(0, n));
+        pending.subList(0, n).clear();
+        return batch;
+    }
+
+    /**
+     * Serve a batch in C-LOOK order from the head, merging adjacent
+     * requests of the same kind.
+     */
+    private void serve(List<Request> batch) {
+        Collections.sort(batch, BY_BLOCK);
+        int split = 0;
+        while(split < batch.size() && batch.get(split).blocknum < head)
+            split++;
+        List<Request> order = new ArrayList<Request>(batch.subList(split, batch.size()));
+        order.addAll(batch.subList(0, split));
+
+        int i = 0;
+        while(i < order.size()) {
+            Request first = order.get(i);
+            int end = first.end();
+            int n = 1;
+            while(i + n < order.size()) {
+                Request next = order.get(i + n);
+                if(next.write != first.write || next.blocknum != end ||
+                   next.end() - first.blocknum > MAX_MERGE)
+                    break;
+                end = next.end();
+                n++;
+            }
+            transfer(order.subList(i, i + n), first.blocknum, end - first.blocknum);
+            head = end;
+            i += n;
+        }
+    }
+
+    /**
+     * Make one transfer of count blocks from blocknum for a run of
+     * adjacent requests, and complete them.
+     */
+    private void transfer(List<Request> run, int blocknum, int count) {
+        boolean write = run.get(0).write;
+        int size = disk.getBlockSize();
+        try {
+            if(run.size() == 1) {
+                ByteBuffer buffer = run.get(0).buffer;
+                if(write)
+                    disk.write(blocknum, count, buffer);
+                else
+                    disk.read(blocknum, count, buffer);
+            } else {
+                byte[] data = new byte[count * size];
+                if(write) {
+                    for(Request r : run)
+                        r.buffer.get(data, (r.blocknum - blocknum) * size,
+                                     r.count * size);
+                    disk.write(blocknum, count, data, 0);
+                } else {
+                    disk.read(blocknum, count, data, 0);
+                    for(Request r : run)
+                        r.buffer.put(data, (r.blocknum - blocknum) * size,
+                                     r.count * size);
+                }
+            }
+        } catch(RuntimeException e) {
+            finish(run, e);
+            return;
+        }
+        finish(run, null);
+    }
+
+    private void finish(List<Request> run, RuntimeException e) {
+        transfers.incrementAndGet();
+        requests.addAndGet(run.size());
+        depth.addAndGet(-run.size());
+        for(Request r : run) {
+            if(e == null)
+                r.done.complete(null);
+            else
+                r.done.completeExceptionally(e);
+        }
+    }
+}
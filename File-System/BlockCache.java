@@ -0,0 +1,133 @@
+package fileSystem;
+import java.util.*;
+
+/**
+ * A bounded, write-back cache of disk blocks.
+ *
+ * Blocks are kept in least-recently-used order. When the cache is
+ * full, the least recently used block is evicted to make room for a
+ * new one. The evicted block is handed back to the caller of put(),
+ * which is responsible for writing it to disk if it is dirty (and may
+ * reuse its buffer).
+ *
+ * A BlockCache knows nothing about the disk it caches: Disk reads
+ * blocks in on a miss, and writes out evicted and flushed blocks.
+ */
+public class BlockCache {
+    private final int capacity;
+    private final LinkedHashMap<Integer, Entry> entries;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    /**
+     * A cached copy of one disk block.
+     */
+    public static class Entry {
+        public final int    blockNum;
+        public final byte[] data;
+        public boolean      dirty;
+
+        public Entry(int blockNum, byte[] data, boolean dirty) {
+            this.blockNum = blockNum;
+            this.data     = data;
+            this.dirty    = dirty;
+        }
+    }
+
+    /**
+     * Construct a new BlockCache.
+     *
+     * @param capacity maximum number of blocks held at once (must be
+     *                 at least 1)
+     */
+    public BlockCache(int capacity) {
+        if(capacity < 1)
+            throw new RuntimeException("Bad cache capacity " + capacity);
+        this.capacity = capacity;
+        this.entries  = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Look up a block, counting a hit or a miss, and mark it most
+     * recently used.
+     *
+     * @param  blockNum block to look up
+     * @return          the cached entry, or null if blockNum is not
+     *                  cached
+     */
+    public Entry get(int blockNum) {
+        Entry entry = entries.get(blockNum);
+        if(entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    /**
+     * Look up a block without counting a hit or a miss.
+     *
+     * @param  blockNum block to look up
+     * @return          the cached entry, or null if blockNum is not
+     *                  cached
+     */
+    public Entry peek(int blockNum) {
+        return entries.get(blockNum);
+    }
+
+    /**
+     * Add a block to the cache, evicting the least recently used
+     * block if the cache is full.
+     *
+     * @param  entry entry to add (must not already be cached)
+     * @return       the evicted entry (the caller must write it out if
+     *               it is dirty), null if nothing was evicted
+     */
+    public Entry put(Entry entry) {
+        Entry victim = null;
+        if(entries.size() >= capacity) {
+            Iterator<Entry> it = entries.values().iterator();
+            victim = it.next();
+            it.remove();
+            evictions++;
+        }
+        entries.put(entry.blockNum, entry);
+        return victim;
+    }
+
+    /**
+     * Get every dirty entry, sorted by block number so that they can
+     * be written out in a single pass over the disk. The entries stay
+     * cached; the caller should clear their dirty flags once written.
+     *
+     * @return dirty entries in ascending block order
+     */
+    public List<Entry> dirty() {
+        List<Entry> dirty = new ArrayList<Entry>();
+        for(Entry entry : entries.values())
+            if(entry.dirty)
+                dirty.add(entry);
+        Collections.sort(dirty, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(a.blockNum, b.blockNum);
+            }
+        });
+        return dirty;
+    }
+
+    /**
+     * Drop every entry, dirty or not (e.g., when the size of the
+     * blocks changes). The caller must write out dirty ones first.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public String toString() {
+        return
+            "cache hits: " + hits +
+            ", misses: " + misses +
+            ", evictions: " + evictions;
+    }
+}
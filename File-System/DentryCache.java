@@ -0,0 +1,96 @@
+package fileSystem;
+import java.util.*;
+
+/**
+ * A bounded cache of directory entries: which inumber a name stands
+ * for in a directory.
+ *
+ * Entries are kept in least-recently-used order, and the least
+ * recently used one is dropped to make room for a new one once the
+ * cache is full. Resolving a path looks up each of its names here
+ * before reading the directory, so the directories on the paths used
+ * most are hardly ever read.
+ *
+ * A DentryCache is safe to use from several threads.
+ */
+public class DentryCache {
+    public static final int CAPACITY = 4096; // default number of entries
+
+    private final int capacity;
+    private final LinkedHashMap<String, Integer> entries;
+    private int hits;
+    private int misses;
+
+    /**
+     * Construct a new DentryCache.
+     *
+     * @param capacity maximum number of entries held at once (must be
+     *                 at least 1)
+     */
+    public DentryCache(int capacity) {
+        if(capacity < 1)
+            throw new RuntimeException("Bad cache capacity " + capacity);
+        this.capacity = capacity;
+        this.entries  = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    }
+
+    /**
+     * Look up a name in a directory, counting a hit or a miss.
+     *
+     * @param  dir  inumber of the directory
+     * @param  name name in the directory
+     * @return      inumber of the name, 0 if it is not cached
+     */
+    public synchronized int get(int dir, String name) {
+        Integer inumber = entries.get(key(dir, name));
+        if(inumber == null) {
+            misses++;
+            return 0;
+        }
+        hits++;
+        return inumber;
+    }
+
+    /**
+     * Cache the inumber of a name in a directory, dropping the least
+     * recently used entry if the cache is full.
+     */
+    public synchronized void put(int dir, String name, int inumber) {
+        entries.put(key(dir, name), inumber);
+        if(entries.size() > capacity) {
+            Iterator<String> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forget a name in a directory (once it is removed).
+     */
+    public synchronized void remove(int dir, String name) {
+        entries.remove(key(dir, name));
+    }
+
+    /**
+     * Forget every entry.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String key(int dir, String name) {
+        return dir + "/" + name;
+    }
+}
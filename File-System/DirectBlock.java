@@ -1,4 +1,7 @@
 package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Represents a direct block (block containing file data). A
  * DirectBlock tracks its location on disk (so it can be easily read
@@ -47,6 +50,12 @@ package fileSystem;
  *     
  * </pre>
  *
+ * A DirectBlock can be pointed at another block with set(), which
+ * reuses its buffer; MyFileSystem keeps one per open file descriptor
+ * (see {@link FileTable#getDirectBlock}) so that writing a file does
+ * not allocate a buffer for every block. Set fresh on a null disk, it
+ * stands for a hole: all zeros, never read or saved.
+ *
  * Note that DirectBlock doesn't understand the length of a file, so
  * if the file data doesn't extend to the end of a block, then it is
  * up to the caller of copyTo to ensure that buf is of the appropriate
@@ -54,7 +63,6 @@ package fileSystem;
  * length of a file.
  */
 public class DirectBlock {
-    public static final DirectBlock hole = new DirectBlock();
     private byte[] block = new byte[Disk.BLOCK_SIZE];
     private Disk disk;
     private int blockNum;
@@ -63,38 +71,77 @@ public class DirectBlock {
     private boolean inCore = false;
     private boolean dirty  = false;
 
-    private DirectBlock() {
-        // Constructs a hole
+    public DirectBlock(Disk disk, int blockNum, int blockOff, boolean fresh) {
+        set(disk, blockNum, blockOff, fresh);
     }
 
-    public DirectBlock(Disk disk, int blockNum, int blockOff, boolean fresh) {
+    /**
+     * Point this DirectBlock at a (possibly different) block and
+     * offset, reusing its buffer (unless the blocks of disk are of a
+     * different size). Any unsaved changes are discarded.
+     *
+     * @return this DirectBlock
+     */
+    public DirectBlock set(Disk disk, int blockNum, int blockOff, boolean fresh) {
         this.blockNum = blockNum;
         this.blockOff = blockOff;
         this.disk     = disk;
         this.fresh    = fresh;
+        this.dirty    = false;
+        this.inCore   = fresh;
+        if(disk != null && block.length != disk.getBlockSize())
+            block = new byte[disk.getBlockSize()];
+        if(fresh)
+            Arrays.fill(block, (byte)0);
+        return this;
     }
 
     public int copyTo(byte[] buf, int off) {
-        if(this != hole && ! inCore)
+        if(! inCore)
             read();
-        int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
-            buf[off + i] = block[blockOff + i];
-        return i;
+        int len = Math.min(buf.length - off, block.length - blockOff);
+        System.arraycopy(block, blockOff, buf, off, len);
+        return len;
     }
 
     public int copyFrom(byte[] buf, int off) {
-        if(! inCore && ! isCompleteOverwrite(buf.length))
+        return copyFrom(buf, off, buf.length - off);
+    }
+
+    /**
+     * Copy up to len bytes from buf at off into the block, as many as
+     * fit after the block offset.
+     *
+     * @return number of bytes copied
+     */
+    public int copyFrom(byte[] buf, int off, int len) {
+        if(! inCore && ! isCompleteOverwrite(len))
+            read();
+        len = Math.min(len, block.length - blockOff);
+        System.arraycopy(buf, off, block, blockOff, len);
+        dirty = true;
+        return len;
+    }
+
+    /**
+     * Copy up to len bytes from buf at its position into the block, as
+     * many as fit after the block offset, and advance the position of
+     * buf past them. buf may be a direct buffer; its bytes are copied
+     * into the block once, with no intermediate array.
+     *
+     * @return number of bytes copied
+     */
+    public int copyFrom(ByteBuffer buf, int len) {
+        if(! inCore && ! isCompleteOverwrite(len))
             read();
-        int i = 0;
-        for(; i + off < buf.length && i + blockOff < Disk.BLOCK_SIZE; ++i)
-            block[blockOff + i] = buf[off + i];
+        len = Math.min(len, block.length - blockOff);
+        buf.get(block, blockOff, len);
         dirty = true;
-        return i;
+        return len;
     }
 
     private boolean isCompleteOverwrite(int len) {
-        return fresh || (blockOff == 0 && len >= 512);
+        return fresh || (blockOff == 0 && len >= block.length);
     }
 
     public void read() {
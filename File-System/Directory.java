@@ -0,0 +1,251 @@
+package fileSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A directory: a file of a MyFileSystem that maps names to inumbers.
+ *
+ * The file is a hash table with open addressing. Its first ENTRY_SIZE
+ * bytes are a header (MAGIC, the number of slots, the number of names
+ * and the number of slots in use, including those of removed names),
+ * and a power of two slots of ENTRY_SIZE bytes follow it, each
+ * holding
+ *
+ * <pre>
+ *   inumber        int (0 if the slot is empty, -1 if its name was removed)
+ *   name length    byte
+ *   name           up to MAX_NAME bytes of UTF-8
+ * </pre>
+ *
+ * A name goes into the first free slot from the one its hash picks
+ * (linear probing), so finding it reads the slots from there up to
+ * the name or an empty slot, a few at most, however large the
+ * directory is. The table is rebuilt at twice the size once 3/4 of
+ * its slots are in use, which keeps those runs short.
+ *
+ * A Directory reads and writes its file through a descriptor open on
+ * it, and keeps the header in memory. It is not safe to use from
+ * several threads; MyFileSystem serializes path operations.
+ */
+public class Directory {
+    public static final int ENTRY_SIZE = 64;
+    public static final int MAX_NAME   = ENTRY_SIZE - 5;
+    public static final int MAGIC      = 0x44495231; // "DIR1"
+
+    private static final int MIN_SLOTS = 16;
+    private static final int PROBE     = 8;  // slots read at a time
+    private static final int EMPTY     = 0;
+    private static final int REMOVED   = -1;
+
+    private final MyFileSystem fs;
+    private final int fd;
+    private int slots;  // size of the table, a power of two
+    private int count;  // names in the table
+    private int used;   // slots that are not empty
+
+    /**
+     * Construct a Directory on the file open as fd, reading its
+     * header. An empty file is made an empty directory.
+     *
+     * @throws IOException if the file is not a directory
+     */
+    public Directory(MyFileSystem fs, int fd) throws IOException {
+        this.fs = fs;
+        this.fd = fd;
+        byte[] header = new byte[ENTRY_SIZE];
+        int len = fs.pread(fd, header, 0, header.length, 0);
+        if(len <= 0) {
+            slots = MIN_SLOTS;
+            if(fs.pwrite(fd, new byte[(1 + slots) * ENTRY_SIZE], 0,
+                         (1 + slots) * ENTRY_SIZE, 0) < 0 || saveHeader() < 0)
+                throw new IOException("Cannot make directory " + fs.inumber(fd));
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(header);
+        int magic = in.getInt();
+        slots = in.getInt();
+        count = in.getInt();
+        used  = in.getInt();
+        if(len != header.length || magic != MAGIC || Integer.bitCount(slots) != 1)
+            throw new IOException("File " + fs.inumber(fd) + " is not a directory");
+    }
+
+    /**
+     * @return fd of the directory file
+     */
+    public int getFd() {
+        return fd;
+    }
+
+    /**
+     * @return number of names in the directory
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Look up a name.
+     *
+     * @param  name name in UTF-8
+     * @return      inumber of the name, 0 if there is none
+     */
+    public int lookup(byte[] name) throws IOException {
+        int slot = find(name);
+        return slot < 0 ? 0 : readInumber(slot);
+    }
+
+    /**
+     * Add a name, growing the table first if it is 3/4 full.
+     *
+     * @param  name    name in UTF-8 (1 to MAX_NAME bytes)
+     * @param  inumber inumber the name stands for (at least 1)
+     * @return         0 on success, -1 if the name exists or the
+     *                 directory cannot be written
+     */
+    public int add(byte[] name, int inumber) throws IOException {
+        if(4L * (used + 1) > 3L * slots && rehash(count + 1) < 0)
+            return -1;
+        int slot = find(name);
+        if(slot >= 0)
+            return -1;
+        slot = -1 - slot;
+        boolean reused = readInumber(slot) == REMOVED;
+
+        byte[] entry = new byte[ENTRY_SIZE];
+        ByteBuffer.wrap(entry).putInt(inumber).put((byte)name.length).put(name);
+        if(fs.pwrite(fd, entry, 0, entry.length, offset(slot)) < 0)
+            return -1;
+        count++;
+        if(! reused)
+            used++;
+        return saveHeader();
+    }
+
+    /**
+     * Remove a name.
+     *
+     * @param  name name in UTF-8
+     * @return      inumber the name stood for, 0 if there is none, -1
+     *              if the directory cannot be written
+     */
+    public int remove(byte[] name) throws IOException {
+        int slot = find(name);
+        if(slot < 0)
+            return 0;
+        int inumber = readInumber(slot);
+        byte[] removed = ByteBuffer.allocate(4).putInt(REMOVED).array();
+        if(fs.pwrite(fd, removed, 0, removed.length, offset(slot)) < 0)
+            return -1;
+        count--;
+        return saveHeader() < 0 ? -1 : inumber;
+    }
+
+    /**
+     * Find the slot holding a name. If there is none, return -1 minus
+     * the slot the name would go into: the first removed or empty
+     * slot met on the way.
+     */
+    private int find(byte[] name) throws IOException {
+        byte[] chunk = new byte[PROBE * ENTRY_SIZE];
+        int free = -1;
+        int slot = hash(name) & (slots - 1);
+        for(int probed = 0; probed < slots; ) {
+            int n = Math.min(PROBE, slots - slot);
+            if(fs.pread(fd, chunk, 0, n * ENTRY_SIZE, offset(slot)) != n * ENTRY_SIZE)
+                throw new IOException("Directory " + fs.inumber(fd) + " is truncated");
+            ByteBuffer in = ByteBuffer.wrap(chunk);
+            for(int i = 0; i < n; ++i, ++probed) {
+                int inumber = in.getInt(i * ENTRY_SIZE);
+                if(inumber == EMPTY)
+                    return -1 - (free < 0 ? slot + i : free);
+                if(inumber == REMOVED) {
+                    if(free < 0)
+                        free = slot + i;
+                } else if(matches(chunk, i * ENTRY_SIZE, name)) {
+                    return slot + i;
+                }
+            }
+            slot = (slot + n) & (slots - 1);
+        }
+        return -1 - free;
+    }
+
+    /**
+     * Rebuild the table with enough slots for n names to leave it at
+     * most 3/8 full, dropping removed names.
+     *
+     * @return 0 on success, -1 if the table cannot be written
+     */
+    private int rehash(int n) throws IOException {
+        int size = MIN_SLOTS;
+        while(8L * n > 3L * size)
+            size <<= 1;
+        if((1L + size) * ENTRY_SIZE > Integer.MAX_VALUE) {
+            System.err.println("Directory " + fs.inumber(fd) + " is full");
+            return -1;
+        }
+        byte[] old = new byte[slots * ENTRY_SIZE];
+        if(fs.pread(fd, old, 0, old.length, offset(0)) != old.length)
+            throw new IOException("Directory " + fs.inumber(fd) + " is truncated");
+
+        byte[] table = new byte[size * ENTRY_SIZE];
+        ByteBuffer in  = ByteBuffer.wrap(old);
+        ByteBuffer out = ByteBuffer.wrap(table);
+        for(int i = 0; i < slots; ++i) {
+            int inumber = in.getInt(i * ENTRY_SIZE);
+            if(inumber == EMPTY || inumber == REMOVED)
+                continue;
+            int len = old[i * ENTRY_SIZE + 4] & 0xff;
+            byte[] name = new byte[len];
+            System.arraycopy(old, i * ENTRY_SIZE + 5, name, 0, len);
+            int slot = hash(name) & (size - 1);
+            while(out.getInt(slot * ENTRY_SIZE) != EMPTY)
+                slot = (slot + 1) & (size - 1);
+            System.arraycopy(old, i * ENTRY_SIZE, table, slot * ENTRY_SIZE, ENTRY_SIZE);
+        }
+        if(fs.pwrite(fd, table, 0, table.length, offset(0)) < 0)
+            return -1;
+        slots = size;
+        used  = count;
+        return saveHeader();
+    }
+
+    private int readInumber(int slot) throws IOException {
+        byte[] b = new byte[4];
+        fs.pread(fd, b, 0, b.length, offset(slot));
+        return ByteBuffer.wrap(b).getInt();
+    }
+
+    private int saveHeader() throws IOException {
+        byte[] header = ByteBuffer.allocate(16)
+            .putInt(MAGIC).putInt(slots).putInt(count).putInt(used).array();
+        return fs.pwrite(fd, header, 0, header.length, 0) < 0 ? -1 : 0;
+    }
+
+    private static long offset(int slot) {
+        return (1L + slot) * ENTRY_SIZE;
+    }
+
+    private static boolean matches(byte[] chunk, int off, byte[] name) {
+        if((chunk[off + 4] & 0xff) != name.length)
+            return false;
+        for(int i = 0; i < name.length; ++i)
+            if(chunk[off + 5 + i] != name[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * FNV-1a hash of a name, with the high bits folded into the low
+     * ones that pick a slot.
+     */
+    private static int hash(byte[] name) {
+        int h = 0x811c9dc5;
+        for(byte b : name) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,22 +1,72 @@
 package fileSystem;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * A Disk simulates a block-oriented storage device.
  *
  * The number of blocks on the disk is NUM_BLOCKS, and each block is
- * BLOCK_SIZE bytes in size.
+ * BLOCK_SIZE bytes in size, unless the file system chooses another
+ * block size when it formats the disk (see setGeometry()). The disk
+ * always holds its capacity, CAPACITY bytes unless it is constructed
+ * with another, so with larger blocks there are fewer of them (at
+ * most Integer.MAX_VALUE).
+ *
+ * Byte offsets in the disk file are longs, so disks may be larger
+ * than 2 GB. The disk file is sparse: it is never preallocated, only
+ * grows as blocks are written, and blocks never written read as
+ * zeros, so a large disk costs only the space of what is on it.
+ *
+ * Blocks pass through a write-back {@link BlockCache}: reads of a
+ * cached block and all writes are served from memory, and dirty
+ * blocks reach the underlying file when they are evicted, when
+ * flush() is called, or when the disk is stopped.
+ *
+ * Runs of consecutive blocks can be read and written with a single
+ * physical transfer (see read(int, int, byte[], int)), straight into
+ * a direct ByteBuffer if the caller has one (see read(int, int,
+ * ByteBuffer)).
+ *
+ * Between begin() and end(), writes of structured blocks (the file
+ * system metadata) are held back instead of being cached, so that a
+ * {@link Journal} can log them before they reach their home blocks.
+ *
+ * A Disk is safe to use from several threads: its public methods
+ * are synchronized, except that prefetch() lets go of the disk
+ * during its physical reads.
+ *
+ * Physical transfers go through readBlocks() and writeBlocks(), which
+ * subclasses override to access the disk file differently (see
+ * {@link MappedDisk}).
  */
 public class Disk {
 	public final static String NAME    = "DISK";
 	public final static int BLOCK_SIZE = 512;
 	public final static int NUM_BLOCKS = 100000;
+	public final static int CACHE_BLOCKS = 1024;
+	public final static long CAPACITY  = (long)NUM_BLOCKS * BLOCK_SIZE;
+	public final static int MIN_BLOCK_SIZE = 512;
+	public final static int MAX_BLOCK_SIZE = 65536;
 	public static boolean printStats   = false;
 
-	private int readCount;  // useful for debugging, incremented on each read
-	private int writeCount; // useful for debugging, incremented on each write
+	private int readCount;  // useful for debugging, incremented on each physical read
+	private int writeCount; // useful for debugging, incremented on each physical write
 	private File file;
 	private RandomAccessFile disk;
+	private BlockCache cache; // null if caching is disabled
+	private byte[] spare;     // buffer of the last evicted block, for reuse
+	private SortedMap<Integer, byte[]> staged; // held back by begin(), or null
+	private int blockSize = BLOCK_SIZE;
+	private int numBlocks = NUM_BLOCKS;
+	private long capacity = CAPACITY; // in bytes
+
+	// Read in place of the part of a transfer past the end of the file
+	private static final byte[] ZEROS = new byte[BLOCK_SIZE];
 
 	/**
 	 * Construct a new simulated disk.
@@ -31,6 +81,37 @@ public class Disk {
 	 * underlying file.
 	 */
 	public Disk() {
+		this(CACHE_BLOCKS);
+	}
+
+	/**
+	 * Construct a new simulated disk with a block cache of the given
+	 * capacity.
+	 *
+	 * @param cacheBlocks number of blocks to cache in memory, or 0 to
+	 *                    send every read and write to the file
+	 */
+	public Disk(int cacheBlocks) {
+		this(cacheBlocks, CAPACITY);
+	}
+
+	/**
+	 * Construct a new simulated disk with a block cache of the given
+	 * capacity, holding capacity bytes.
+	 *
+	 * @param cacheBlocks number of blocks to cache in memory, or 0 to
+	 *                    send every read and write to the file
+	 * @param capacity    size of the disk in bytes (at least
+	 *                    MAX_BLOCK_SIZE); nothing is allocated for it
+	 *                    until blocks are written
+	 */
+	public Disk(int cacheBlocks, long capacity) {
+		if(capacity < MAX_BLOCK_SIZE)
+			throw new RuntimeException("Bad disk capacity " + capacity);
+		this.capacity  = capacity;
+		this.numBlocks = blockCount(BLOCK_SIZE);
+		if(cacheBlocks > 0)
+			cache = new BlockCache(cacheBlocks);
 		try {
 			file = new File(NAME);
 			disk = new RandomAccessFile(file, "rw");
@@ -40,6 +121,68 @@ public class Disk {
 		}
 	}
 
+	/**
+	 * Change the size of the blocks of the disk, and with it the
+	 * number of blocks, so that the disk still holds its capacity.
+	 * Dirty cached blocks are written out first,
+	 * then the cache is emptied. Called by the file system when it
+	 * formats or mounts the disk; must not be called between begin()
+	 * and end().
+	 *
+	 * @param  blockSize size of a block in bytes, a power of two from
+	 *                   MIN_BLOCK_SIZE to MAX_BLOCK_SIZE
+	 * @throws RuntimeException if blockSize is not allowed
+	 */
+	public synchronized void setGeometry(int blockSize) {
+		if(! isBlockSize(blockSize))
+			throw new RuntimeException("Bad block size " + blockSize);
+		if(blockSize == this.blockSize)
+			return;
+		flush();
+		if(cache != null)
+			cache.clear();
+		spare = null;
+		this.blockSize = blockSize;
+		this.numBlocks = blockCount(blockSize);
+	}
+
+	/**
+	 * @return number of blocks of blockSize bytes that the disk holds
+	 */
+	public synchronized int blockCount(int blockSize) {
+		return (int)Math.min(capacity / blockSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return size of the disk in bytes
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return whether blockSize is a power of two from MIN_BLOCK_SIZE
+	 *         to MAX_BLOCK_SIZE
+	 */
+	public static boolean isBlockSize(int blockSize) {
+		return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE &&
+			Integer.bitCount(blockSize) == 1;
+	}
+
+	/**
+	 * @return size of a block in bytes
+	 */
+	public synchronized int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return number of blocks on the disk
+	 */
+	public synchronized int getNumBlocks() {
+		return numBlocks;
+	}
+
 	/**
 	 * Read a block into the buffer.
 	 *
@@ -52,18 +195,37 @@ public class Disk {
 	 * @throws RuntimeException if blocknum is out of range or if your
 	 *                          buffer is too small
 	 */
-	public void read(int blocknum, byte[] buffer) {
-		if(buffer.length != BLOCK_SIZE) {
+	public synchronized void read(int blocknum, byte[] buffer) {
+		if(buffer.length != blockSize) {
 			throw new RuntimeException("read: buffer too small");
 		}
-		try {
-			seek(blocknum);
-			disk.read(buffer);
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+		check(blocknum);
+		if(cache == null)
+			transferIn(blocknum, buffer);
+		else
+			System.arraycopy(fetch(blocknum), 0, buffer, 0, blockSize);
+	}
+
+	/**
+	 * Read len bytes of block blocknum, starting at byte blockOff of
+	 * the block, into the buffer at its position, and advance the
+	 * position. Cached like read(int, byte[]), but without copying
+	 * the whole block.
+	 *
+	 * @param  blocknum block to read (in range 0 .. NUM_BLOCKS - 1)
+	 * @param  blockOff offset in the block of the first byte to read
+	 * @param  buffer   buffer to read into (heap or direct)
+	 * @param  len      number of bytes to read
+	 * @throws RuntimeException if blocknum is out of range or if the
+	 *                          bytes are not all within the block and
+	 *                          the buffer
+	 */
+	public synchronized void read(int blocknum, int blockOff, ByteBuffer buffer, int len) {
+		if(blockOff < 0 || len < 0 || blockOff + len > blockSize ||
+		   len > buffer.remaining()) {
+			throw new RuntimeException("read: range out of bounds");
 		}
-		readCount++;
+		buffer.put(fetch(blocknum), blockOff, len);
 	}
 
 	/**
@@ -73,29 +235,38 @@ public class Disk {
 	 * I/O error.
 	 *
 	 * @param  blocknum block to read (in range 0 .. NUM_BLOCKS - 1)
-	 * @param  block    SuperBlock to mutate based on contents of block
+	 * @param  block    SuperBlock to mutate based on contents of block;
+	 *                  its free map is resized to fill the rest of the
+	 *                  block if needed. A block without
+	 *                  SuperBlock.MAGIC is read in the baseline
+	 *                  layout; only the version is read from a block
+	 *                  of an unknown layout
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, SuperBlock block) {
-		try {
-			seek(blocknum);
-			block.size = disk.readInt();
-			block.isize = disk.readInt();
-			block.msize = disk.readInt();
-			for(int i=0; i<block.freeMap.length; i++) {
-				block.freeMap[i] = disk.readByte();
-			}
-		} catch(EOFException e) {
-			if(blocknum != 0) {
-				System.err.println(e);
-				System.exit(1);
-			}
-			block.size = block.isize = block.msize = 0;
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void read(int blocknum, SuperBlock block) {
+		ByteBuffer in = view(blocknum);
+		block.version = 0;
+		block.jsize = block.bsize = block.root = 0;
+		if(in.getInt(0) == SuperBlock.MAGIC) {
+			in.getInt();
+			block.version = in.getInt();
 		}
-		readCount++;
+		if(block.version == 0 || block.version == SuperBlock.VERSION) {
+			block.size = in.getInt();
+			block.isize = in.getInt();
+			block.msize = in.getInt();
+		} else {
+			block.size = block.isize = block.msize = 0; // unknown layout
+		}
+		if(block.version == SuperBlock.VERSION) {
+			block.jsize = in.getInt();
+			block.bsize = in.getInt();
+			block.root = in.getInt();
+		}
+		in.position(block.header());
+		if(block.freeMap.length != in.remaining())
+			block.freeMap = new byte[in.remaining()];
+		in.get(block.freeMap);
 	}
 
 	/**
@@ -108,22 +279,16 @@ public class Disk {
 	 * @param  block    InodeBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, InodeBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.inodes.length; i++) {
-				block.inodes[i].flags = disk.readInt();
-				block.inodes[i].owner = disk.readInt();
-				block.inodes[i].size = disk.readInt();
-				for(int j=0; j<13; j++) {
-					block.inodes[i].ptr[j] = disk.readInt();
-				}
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void read(int blocknum, InodeBlock block) {
+		IntBuffer in = view(blocknum).asIntBuffer();
+		for(int i=0; i<block.inodes.length; i++) {
+			int flags = in.get();
+			block.inodes[i].flags = flags & 0xffff;
+			block.inodes[i].owner = in.get();
+			block.inodes[i].size = (in.get() & 0xffffffffL) |
+				(long)(flags >>> 16) << 32;
+			in.get(block.inodes[i].ptr);
 		}
-		readCount++;
 	}
 
 	/**
@@ -136,17 +301,8 @@ public class Disk {
 	 * @param  block    IndirectBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, IndirectBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.ptr.length; i++) {
-				block.ptr[i] = disk.readInt();
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		readCount++;
+	public synchronized void read(int blocknum, IndirectBlock block) {
+		view(blocknum).asIntBuffer().get(block.ptr);
 	}
 
 	/**
@@ -159,17 +315,8 @@ public class Disk {
 	 * @param  block    FreeMapBlock to mutate based on contents of block
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void read(int blocknum, FreeMapBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				block.map[i] = disk.readByte();
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		readCount++;
+	public synchronized void read(int blocknum, FreeMapBlock block) {
+		System.arraycopy(fetch(blocknum), 0, block.map, 0, block.map.length);
 	}
 
 	/**
@@ -182,41 +329,40 @@ public class Disk {
 	 * @param  buffer   bytes to write (must be of size BLOCK_SIZE)
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, byte[] buffer) {
-		if(buffer.length != BLOCK_SIZE) 
+	public synchronized void write(int blocknum, byte[] buffer) {
+		if(buffer.length != blockSize) 
 			throw new RuntimeException(
 					"Write: bad buffer size " + buffer.length);
-		try {
-			seek(blocknum);
-			disk.write(buffer);
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		writeCount++;
+		check(blocknum);
+		if(cache == null)
+			transferOut(blocknum, buffer);
+		else
+			store(blocknum, buffer, true);
 	}
 
 	/**
-	 * Write a SuperBlock to disk.
+	 * Write a SuperBlock to disk, in the layout of its version.
 	 *
 	 * @param blocknum block to write (in range 0 .. NUM_BLOCKS - 1)
 	 * @param block    SuperBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, SuperBlock block) {
-		try {
-			seek(blocknum);
-			disk.writeInt(block.size);
-			disk.writeInt(block.isize);
-			disk.writeInt(block.msize);
-			for(int i=0; i<block.freeMap.length; i++) {
-				disk.writeByte(block.freeMap[i]);
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void write(int blocknum, SuperBlock block) {
+		ByteBuffer out = ByteBuffer.allocate(blockSize);
+		if(block.version != 0) {
+			out.putInt(SuperBlock.MAGIC);
+			out.putInt(block.version);
 		}
-		writeCount++;
+		out.putInt(block.size);
+		out.putInt(block.isize);
+		out.putInt(block.msize);
+		if(block.version != 0) {
+			out.putInt(block.jsize);
+			out.putInt(block.bsize);
+			out.putInt(block.root);
+		}
+		out.put(block.freeMap);
+		storeMetadata(blocknum, out.array());
 	}
 
 	/**
@@ -226,22 +372,17 @@ public class Disk {
 	 * @param block    InodeBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, InodeBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.inodes.length; i++) {
-				disk.writeInt(block.inodes[i].flags);
-				disk.writeInt(block.inodes[i].owner);
-				disk.writeInt(block.inodes[i].size);
-				for(int j=0; j<13; j++) {
-					disk.writeInt(block.inodes[i].ptr[j]);
-				}
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
+	public synchronized void write(int blocknum, InodeBlock block) {
+		byte[] data = newBlock();
+		IntBuffer out = ByteBuffer.wrap(data).asIntBuffer();
+		for(int i=0; i<block.inodes.length; i++) {
+			long size = block.inodes[i].size;
+			out.put(block.inodes[i].flags & 0xffff | (int)(size >>> 32) << 16);
+			out.put(block.inodes[i].owner);
+			out.put((int)size);
+			out.put(block.inodes[i].ptr);
 		}
-		writeCount++;
+		storeMetadata(blocknum, data);
 	}
 
 	/**
@@ -251,17 +392,10 @@ public class Disk {
 	 * @param block    InodeBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, IndirectBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.ptr.length; i++) {
-				disk.writeInt(block.ptr[i]);
-			}
-		} catch(IOException e) {
-			System.err.println(e);
-			System.exit(1);
-		}
-		writeCount++;
+	public synchronized void write(int blocknum, IndirectBlock block) {
+		byte[] data = newBlock();
+		ByteBuffer.wrap(data).asIntBuffer().put(block.ptr);
+		storeMetadata(blocknum, data);
 	}
 
 	/**
@@ -271,26 +405,261 @@ public class Disk {
 	 * @param block    FreeMapBlock to write
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	public void write(int blocknum, FreeMapBlock block) {
-		try {
-			seek(blocknum);
-			for(int i=0; i<block.map.length; i++) {
-				disk.write(block.map[i]);
+	public synchronized void write(int blocknum, FreeMapBlock block) {
+		storeMetadata(blocknum, block.map.clone());
+	}
+
+	/**
+	 * Read count consecutive blocks, starting at block blocknum, into
+	 * the buffer.
+	 *
+	 * Cached blocks are copied from memory; every run of uncached
+	 * blocks is read with a single physical transfer. Blocks read
+	 * this way are not added to the cache.
+	 *
+	 * @param  blocknum first block to read
+	 * @param  count    number of blocks to read
+	 * @param  buffer   buffer to read into
+	 * @param  off      offset in buffer of the first byte to read; the
+	 *                  buffer must hold count * BLOCK_SIZE bytes from
+	 *                  there
+	 * @throws RuntimeException if a block is out of range or if your
+	 *                          buffer is too small
+	 */
+	public synchronized void read(int blocknum, int count, byte[] buffer, int off) {
+		checkRange(blocknum, count, buffer, off);
+		read(blocknum, count, ByteBuffer.wrap(buffer, off, count * blockSize));
+	}
+
+	/**
+	 * Read count consecutive blocks, starting at block blocknum, into
+	 * the buffer at its position, like read(int, int, byte[], int),
+	 * and advance the position. A direct buffer is filled straight
+	 * from the disk file, without going through a heap array.
+	 *
+	 * @param  blocknum first block to read
+	 * @param  count    number of blocks to read
+	 * @param  buffer   buffer to read into; must have count *
+	 *                  BLOCK_SIZE bytes remaining
+	 * @throws RuntimeException if a block is out of range or if your
+	 *                          buffer is too small
+	 */
+	public synchronized void read(int blocknum, int count, ByteBuffer buffer) {
+		checkRange(blocknum, count, buffer);
+		int i = 0;
+		while(i < count) {
+			BlockCache.Entry entry =
+				cache == null ? null : cache.get(blocknum + i);
+			if(entry != null) {
+				buffer.put(entry.data);
+				i++;
+				continue;
+			}
+			int n = 1;
+			while(i + n < count &&
+			      (cache == null || cache.peek(blocknum + i + n) == null))
+				n++;
+			transferIn(blocknum + i, n, buffer);
+			i += n;
+		}
+	}
+
+	/**
+	 * Bring count consecutive blocks, starting at block blocknum, into
+	 * the block cache as clean blocks, with one physical read for
+	 * every run of them that is not cached yet. Does nothing if
+	 * caching is disabled.
+	 *
+	 * The physical reads are made without holding the disk, so that
+	 * other threads can go on using it (e.g., reading blocks prefetched
+	 * earlier). The caller must make sure nobody writes the blocks
+	 * meanwhile.
+	 *
+	 * @param  blocknum first block to prefetch
+	 * @param  count    number of blocks to prefetch
+	 * @throws RuntimeException if a block is out of range
+	 */
+	public void prefetch(int blocknum, int count) {
+		int i = 0;
+		while(i < count) {
+			int n = 1;
+			synchronized(this) {
+				if(cache == null)
+					return;
+				check(blocknum);
+				check(blocknum + count - 1);
+				while(i < count && isCachedOrStaged(blocknum + i))
+					i++;
+				if(i == count)
+					return;
+				while(i + n < count && ! isCachedOrStaged(blocknum + i + n))
+					n++;
+			}
+			byte[] run = new byte[n * blockSize];
+			try {
+				readBlocks(blocknum + i, n, ByteBuffer.wrap(run));
+			} catch(IOException e) {
+				System.err.println(e);
+				System.exit(1);
+			}
+			synchronized(this) {
+				readCount++;
+				for(int k = 0; k < n; k++) {
+					if(isCachedOrStaged(blocknum + i + k))
+						continue;
+					byte[] data = newBlock();
+					System.arraycopy(run, k * blockSize, data, 0, blockSize);
+					install(new BlockCache.Entry(blocknum + i + k, data, false));
+				}
+			}
+			i += n;
+		}
+	}
+
+	/**
+	 * Write count consecutive blocks, starting at block blocknum,
+	 * from the buffer with a single physical transfer. Cached copies
+	 * of those blocks are updated and become clean.
+	 *
+	 * @param  blocknum first block to write
+	 * @param  count    number of blocks to write
+	 * @param  buffer   buffer to write from
+	 * @param  off      offset in buffer of the first byte to write; the
+	 *                  buffer must hold count * BLOCK_SIZE bytes from
+	 *                  there
+	 * @throws RuntimeException if a block is out of range or if your
+	 *                          buffer is too small
+	 */
+	public synchronized void write(int blocknum, int count, byte[] buffer, int off) {
+		checkRange(blocknum, count, buffer, off);
+		write(blocknum, count, ByteBuffer.wrap(buffer, off, count * blockSize));
+	}
+
+	/**
+	 * Write count consecutive blocks, starting at block blocknum,
+	 * from the buffer at its position, like write(int, int, byte[],
+	 * int), and advance the position. A direct buffer goes straight
+	 * to the disk file, without going through a heap array.
+	 *
+	 * @param  blocknum first block to write
+	 * @param  count    number of blocks to write
+	 * @param  buffer   buffer to write from; must have count *
+	 *                  BLOCK_SIZE bytes remaining
+	 * @throws RuntimeException if a block is out of range or if your
+	 *                          buffer is too small
+	 */
+	public synchronized void write(int blocknum, int count, ByteBuffer buffer) {
+		checkRange(blocknum, count, buffer);
+		int start = buffer.position();
+		transferOut(blocknum, count, buffer);
+		if(cache == null)
+			return;
+		ByteBuffer src = buffer.duplicate();
+		for(int i = 0; i < count; i++) {
+			BlockCache.Entry entry = cache.peek(blocknum + i);
+			if(entry != null) {
+				src.position(start + i * blockSize);
+				src.get(entry.data);
+				entry.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Write every dirty cached block to the underlying file, in
+	 * ascending block order. The blocks stay cached.
+	 */
+	public synchronized void flush() {
+		if(cache == null)
+			return;
+		for(BlockCache.Entry entry : cache.dirty()) {
+			transferOut(entry.blockNum, entry.data);
+			entry.dirty = false;
+		}
+	}
+
+	/**
+	 * Write the dirty cached blocks among count consecutive blocks
+	 * starting at blocknum to the underlying file, in ascending order
+	 * and with a single physical transfer for each run of consecutive
+	 * dirty blocks. The blocks stay cached.
+	 *
+	 * @param blocknum first block to flush
+	 * @param count    number of blocks to flush
+	 */
+	public synchronized void flush(int blocknum, int count) {
+		if(cache == null)
+			return;
+		int i = 0;
+		while(i < count) {
+			if(dirtyEntry(blocknum + i) == null) {
+				i++;
+				continue;
 			}
+			int n = 1;
+			while(i + n < count && dirtyEntry(blocknum + i + n) != null)
+				n++;
+			byte[] run = new byte[n * blockSize];
+			for(int j = 0; j < n; j++) {
+				BlockCache.Entry entry = dirtyEntry(blocknum + i + j);
+				System.arraycopy(entry.data, 0, run, j * blockSize, blockSize);
+				entry.dirty = false;
+			}
+			transferOut(blocknum + i, n, run, 0);
+			i += n;
+		}
+	}
+
+	/**
+	 * Start holding back writes of structured blocks (SuperBlock,
+	 * InodeBlock, IndirectBlock and FreeMapBlock). Until end() is
+	 * called they are kept aside instead of being cached or written,
+	 * and reads of those blocks see the held back contents.
+	 */
+	public synchronized void begin() {
+		staged = new TreeMap<Integer, byte[]>();
+	}
+
+	/**
+	 * Stop holding back writes of structured blocks.
+	 *
+	 * @return the blocks written since begin(), by block number; the
+	 *         caller is responsible for writing them
+	 */
+	public synchronized SortedMap<Integer, byte[]> end() {
+		SortedMap<Integer, byte[]> blocks = staged;
+		staged = null;
+		return blocks;
+	}
+
+	/**
+	 * Force the blocks physically written so far out to stable
+	 * storage, e.g. after flushing the blocks of a file.
+	 *
+	 * Immediately terminates your program if there is an underlying
+	 * I/O error.
+	 */
+	public synchronized void force() {
+		try {
+			sync();
 		} catch(IOException e) {
 			System.err.println(e);
 			System.exit(1);
 		}
-		writeCount++;
 	}
 
 	/**
-	 * Stop the disk.
+	 * Stop the disk. Dirty cached blocks are flushed first unless the
+	 * disk file is being removed.
 	 *
 	 * @param removeFile true if you want to delete the disk file,
 	 *                   false otherwise
 	 */
-	public void stop(boolean removeFile) {
+	public synchronized void stop(boolean removeFile) {
+		if(! removeFile) {
+			flush();
+			force();
+		}
 		if(printStats)
 			System.out.println(this);
 		if(removeFile) {
@@ -307,27 +676,344 @@ public class Disk {
 	/**
 	 * Stop the disk.
 	 */
-	public void stop() {
+	public synchronized void stop() {
 		stop(true);
 	}
 
-	public String toString() {
-		return NAME + "(reads: " + readCount + ", writes: " + writeCount + ")";
+	public synchronized String toString() {
+		return NAME + "(reads: " + readCount + ", writes: " + writeCount +
+			(cache == null ? "" : ", " + cache) + ")";
+	}
+
+	/**
+	 * Get the contents of block blocknum, reading it in on a cache
+	 * miss. The returned array is the cached copy (or a private copy
+	 * if caching is disabled) and must not be modified.
+	 *
+	 * @private
+	 * @param blocknum block to get
+	 * @return         BLOCK_SIZE bytes of block contents
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	private byte[] fetch(int blocknum) {
+		check(blocknum);
+		if(staged != null && staged.containsKey(blocknum))
+			return staged.get(blocknum);
+		BlockCache.Entry entry = cache == null ? null : cache.get(blocknum);
+		if(entry != null)
+			return entry.data;
+		byte[] data = newBlock();
+		transferIn(blocknum, data);
+		if(cache != null)
+			install(new BlockCache.Entry(blocknum, data, false));
+		return data;
+	}
+
+	/**
+	 * Check whether block blocknum is cached or held back by begin().
+	 *
+	 * @private
+	 */
+	private boolean isCachedOrStaged(int blocknum) {
+		return cache.peek(blocknum) != null ||
+			(staged != null && staged.containsKey(blocknum));
+	}
+
+	/**
+	 * Get the cache entry of block blocknum if it is cached and dirty.
+	 *
+	 * @private
+	 */
+	private BlockCache.Entry dirtyEntry(int blocknum) {
+		BlockCache.Entry entry = cache.peek(blocknum);
+		return entry != null && entry.dirty ? entry : null;
+	}
+
+	/**
+	 * Get a read-only ByteBuffer view of the contents of block
+	 * blocknum, for decoding structured blocks.
+	 *
+	 * @private
+	 */
+	private ByteBuffer view(int blocknum) {
+		return ByteBuffer.wrap(fetch(blocknum)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Replace the contents of block blocknum. With caching enabled the
+	 * block is only marked dirty; otherwise it is written through.
+	 *
+	 * @private
+	 * @param blocknum block to replace
+	 * @param data     new contents (BLOCK_SIZE bytes)
+	 * @param copy     true if the caller keeps using data; otherwise
+	 *                 the cache takes ownership of the array
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	private void store(int blocknum, byte[] data, boolean copy) {
+		check(blocknum);
+		if(cache == null) {
+			transferOut(blocknum, data);
+			return;
+		}
+		BlockCache.Entry entry = cache.peek(blocknum);
+		if(entry != null) {
+			System.arraycopy(data, 0, entry.data, 0, blockSize);
+			entry.dirty = true;
+			if(! copy)
+				spare = data;
+		} else {
+			if(copy) {
+				byte[] own = newBlock();
+				System.arraycopy(data, 0, own, 0, blockSize);
+				data = own;
+			}
+			install(new BlockCache.Entry(blocknum, data, true));
+		}
+	}
+
+	/**
+	 * Replace the contents of a structured block, or hold the new
+	 * contents back if begin() has been called.
+	 *
+	 * @private
+	 * @param blocknum block to replace
+	 * @param data     new contents (BLOCK_SIZE bytes), owned by the
+	 *                 disk from now on
+	 * @throws RuntimeException if blocknum is out of range
+	 */
+	private void storeMetadata(int blocknum, byte[] data) {
+		if(staged == null) {
+			store(blocknum, data, false);
+			return;
+		}
+		check(blocknum);
+		staged.put(blocknum, data);
+	}
+
+	/**
+	 * Get a buffer for one block, reusing the buffer of the last
+	 * evicted block if there is one. Its contents are garbage.
+	 *
+	 * @private
+	 */
+	private byte[] newBlock() {
+		byte[] data = spare != null ? spare : new byte[blockSize];
+		spare = null;
+		return data;
+	}
+
+	/**
+	 * Add an entry to the cache, writing out the block it evicts if
+	 * that block is dirty, and keeping its buffer for newBlock().
+	 *
+	 * @private
+	 */
+	private void install(BlockCache.Entry entry) {
+		BlockCache.Entry victim = cache.put(entry);
+		if(victim == null)
+			return;
+		if(victim.dirty)
+			transferOut(victim.blockNum, victim.data);
+		spare = victim.data;
+	}
+
+	/**
+	 * Read block blocknum from the underlying storage, counting the
+	 * physical read.
+	 *
+	 * @private
+	 */
+	private void transferIn(int blocknum, byte[] buffer) {
+		transferIn(blocknum, 1, buffer, 0);
 	}
 
 	/**
-	 * Seek the underlying disk file to the specified blocknum.
+	 * Read count consecutive blocks from the underlying storage in a
+	 * single physical read.
 	 *
 	 * @private
-	 * @param blocknum Block number to which to seek the underlying file
+	 */
+	private void transferIn(int blocknum, int count, byte[] buffer, int off) {
+		transferIn(blocknum, count, ByteBuffer.wrap(buffer, off, count * blockSize));
+	}
+
+	/**
+	 * Read count consecutive blocks from the underlying storage into
+	 * buffer at its position in a single physical read, advancing the
+	 * position.
+	 *
+	 * @private
+	 */
+	private void transferIn(int blocknum, int count, ByteBuffer buffer) {
+		try {
+			readBlocks(blocknum, count, buffer);
+		} catch(IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		readCount++;
+	}
+
+	/**
+	 * Write block blocknum to the underlying storage, counting the
+	 * physical write.
+	 *
+	 * @private
+	 */
+	private void transferOut(int blocknum, byte[] buffer) {
+		transferOut(blocknum, 1, buffer, 0);
+	}
+
+	/**
+	 * Write count consecutive blocks to the underlying storage in a
+	 * single physical write.
+	 *
+	 * @private
+	 */
+	private void transferOut(int blocknum, int count, byte[] buffer, int off) {
+		transferOut(blocknum, count, ByteBuffer.wrap(buffer, off, count * blockSize));
+	}
+
+	/**
+	 * Write count consecutive blocks to the underlying storage from
+	 * buffer at its position in a single physical write, advancing
+	 * the position.
+	 *
+	 * @private
+	 */
+	private void transferOut(int blocknum, int count, ByteBuffer buffer) {
+		try {
+			writeBlocks(blocknum, count, buffer);
+		} catch(IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+		writeCount++;
+	}
+
+	/**
+	 * Physically read count consecutive blocks, starting at block
+	 * blocknum, from the disk file with one positioned read, into
+	 * buffer at its position, and advance the position by count *
+	 * BLOCK_SIZE. Any part of the range beyond the end of the file
+	 * reads as zeros. Subclasses may override this to use a different
+	 * access method.
+	 *
+	 * @param  blocknum first block to read (already range checked)
+	 * @param  count    number of blocks to read
+	 * @param  buffer   buffer to read into (heap or direct), with room
+	 *                  for count * BLOCK_SIZE bytes
 	 * @throws IOException if there is a disk error
+	 */
+	protected void readBlocks(int blocknum, int count, ByteBuffer buffer)
+			throws IOException {
+		int end = buffer.position() + count * blockSize;
+		ByteBuffer dst = buffer.duplicate();
+		dst.limit(end);
+		long pos = position(blocknum);
+		int len;
+		while(dst.hasRemaining() &&
+		      (len = channel().read(dst, pos)) > 0)
+			pos += len;
+		while(dst.hasRemaining())
+			dst.put(ZEROS, 0, Math.min(ZEROS.length, dst.remaining()));
+		buffer.position(end);
+	}
+
+	/**
+	 * Physically write count consecutive blocks, starting at block
+	 * blocknum, to the disk file with one positioned write, from
+	 * buffer at its position, and advance the position by count *
+	 * BLOCK_SIZE. Subclasses may override this to use a different
+	 * access method.
+	 *
+	 * @param  blocknum first block to write (already range checked)
+	 * @param  count    number of blocks to write
+	 * @param  buffer   buffer to write from (heap or direct), holding
+	 *                  count * BLOCK_SIZE bytes
+	 * @throws IOException if there is a disk error
+	 */
+	protected void writeBlocks(int blocknum, int count, ByteBuffer buffer)
+			throws IOException {
+		int end = buffer.position() + count * blockSize;
+		ByteBuffer src = buffer.duplicate();
+		src.limit(end);
+		long pos = position(blocknum);
+		while(src.hasRemaining())
+			pos += channel().write(src, pos);
+		buffer.position(end);
+	}
+
+	/**
+	 * Force physically written blocks out to stable storage. Called
+	 * by force() and when the disk is stopped, after the cache has
+	 * been flushed. Subclasses that do not write through channel()
+	 * override this too.
+	 *
+	 * @throws IOException if there is a disk error
+	 */
+	protected void sync() throws IOException {
+		channel().force(false);
+	}
+
+	/**
+	 * Get the channel of the underlying disk file.
+	 */
+	protected FileChannel channel() {
+		return disk.getChannel();
+	}
+
+	/**
+	 * Make sure a run of count blocks starting at blocknum is in range
+	 * and fits in buffer from offset off.
+	 *
+	 * @private
+	 * @throws RuntimeException if a block is out of range or the
+	 *                          buffer is too small
+	 */
+	private void checkRange(int blocknum, int count, byte[] buffer, int off) {
+		check(blocknum);
+		check(blocknum + count - 1);
+		if(off < 0 || (long)off + (long)count * blockSize > buffer.length)
+			throw new RuntimeException("Transfer: buffer too small");
+	}
+
+	/**
+	 * Make sure a run of count blocks starting at blocknum is in range
+	 * and fits in the remaining bytes of buffer.
+	 *
+	 * @private
+	 * @throws RuntimeException if a block is out of range or the
+	 *                          buffer is too small
+	 */
+	private void checkRange(int blocknum, int count, ByteBuffer buffer) {
+		check(blocknum);
+		check(blocknum + count - 1);
+		if((long)count * blockSize > buffer.remaining())
+			throw new RuntimeException("Transfer: buffer too small");
+	}
+
+	/**
+	 * Make sure blocknum is in range.
+	 *
+	 * @private
 	 * @throws RuntimeException if blocknum is out of range
 	 */
-	private void seek(int blocknum) throws IOException {
-		if(blocknum < 0 || blocknum >= NUM_BLOCKS) {
+	private void check(int blocknum) {
+		if(blocknum < 0 || blocknum >= numBlocks) {
 			throw new RuntimeException ("Attempt to read block " +
 					blocknum + " is out of range");
 		}
-		disk.seek((long)(blocknum * BLOCK_SIZE));
+	}
+
+	/**
+	 * Compute the byte offset of block blocknum in the disk file.
+	 *
+	 * @param blocknum block number (already range checked)
+	 * @return         offset of the first byte of the block
+	 */
+	protected long position(int blocknum) {
+		return (long)blocknum * blockSize;
 	}
 }
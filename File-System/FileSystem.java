@@ -1,5 +1,6 @@
 package fileSystem;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Your FileSystem implementation must create and manage a private
@@ -74,6 +75,31 @@ public interface FileSystem {
      * @return        number of bytes read into buffer, -1 on error
      */
     public int read(int fd, byte[] buffer) throws IOException;
+
+    /**
+     * Read up to len bytes into buffer, starting at offset off in
+     * buffer, from open file identified by fd. Otherwise like
+     * read(int, byte[]).
+     *
+     * @param  fd     fd of an open file
+     * @param  buffer buffer to read into
+     * @param  off    offset in buffer to read into
+     * @param  len    maximum number of bytes to read
+     * @return        number of bytes read into buffer, -1 on error
+     */
+    public int read(int fd, byte[] buffer, int off, int len) throws IOException;
+
+    /**
+     * Read up to buffer.remaining() bytes into buffer, at its position,
+     * from open file identified by fd, and advance the position of
+     * buffer by the number of bytes read. Otherwise like read(int,
+     * byte[]). The buffer may be direct.
+     *
+     * @param  fd     fd of an open file
+     * @param  buffer buffer to read into
+     * @return        number of bytes read into buffer, -1 on error
+     */
+    public int read(int fd, ByteBuffer buffer) throws IOException;
     
     /**
      * Write buffer.length bytes from buffer to the file starting at
@@ -81,13 +107,75 @@ public interface FileSystem {
      * amount.
      *
      * It is not an error if the seek pointer is greater than the size
-     * of the file. In this case, holes may be created.
+     * of the file. In this case, holes may be created. Whole blocks
+     * of zeros written over holes are left as holes.
      *
      * @param  fd     fd of an open file
      * @param  buffer buffer to write from; writes buffer.length bytes
      * @return        number of bytes written, -1 on error
      */
     public int write(int fd, byte[] buffer) throws IOException;
+
+    /**
+     * Write len bytes from buffer, starting at offset off in buffer,
+     * to open file identified by fd. Otherwise like write(int,
+     * byte[]).
+     *
+     * @param  fd     fd of an open file
+     * @param  buffer buffer to write from
+     * @param  off    offset in buffer to write from
+     * @param  len    number of bytes to write
+     * @return        number of bytes written, -1 on error
+     */
+    public int write(int fd, byte[] buffer, int off, int len) throws IOException;
+
+    /**
+     * Write buffer.remaining() bytes from buffer, at its position, to
+     * open file identified by fd, and advance the position of buffer
+     * by the number of bytes written. Otherwise like write(int,
+     * byte[]). The buffer may be direct.
+     *
+     * @param  fd     fd of an open file
+     * @param  buffer buffer to write from
+     * @return        number of bytes written, -1 on error
+     */
+    public int write(int fd, ByteBuffer buffer) throws IOException;
+    
+    /**
+     * Read up to len bytes into buffer, starting at offset off in
+     * buffer, from position in the open file identified by fd, and
+     * return the number of bytes read.
+     *
+     * Like read(), but at position instead of the seek pointer, which
+     * is neither used nor changed, so several threads may read through
+     * the same fd at once.
+     *
+     * @param  fd       fd of an open file
+     * @param  buffer   buffer to read into
+     * @param  off      offset in buffer to read into
+     * @param  len      maximum number of bytes to read
+     * @param  position offset in the file to read from (at least 0)
+     * @return          number of bytes read into buffer, -1 on error
+     */
+    public int pread(int fd, byte[] buffer, int off, int len, long position)
+        throws IOException;
+
+    /**
+     * Write len bytes from buffer, starting at offset off in buffer,
+     * to position in the open file identified by fd.
+     *
+     * Like write(), but at position instead of the seek pointer, which
+     * is neither used nor changed.
+     *
+     * @param  fd       fd of an open file
+     * @param  buffer   buffer to write from
+     * @param  off      offset in buffer to write from
+     * @param  len      number of bytes to write
+     * @param  position offset in the file to write to (at least 0)
+     * @return          number of bytes written, -1 on error
+     */
+    public int pwrite(int fd, byte[] buffer, int off, int len, long position)
+        throws IOException;
     
     /**
      * Seek by offset relative to whence in the open file identified
@@ -101,14 +189,28 @@ public interface FileSystem {
      * relative. See the documentation for {@link Whence} for more
      * information.
      *
+     * Offsets and sizes are 64 bits, so files may be larger than 2
+     * GB (see Inode.MAX_SIZE), though a single read or write moves at
+     * most an int worth of bytes.
+     *
      * @param  fd     fd of an open file
      * @param  offset seek amount relative to whence
      * @param  whence relative position for seek
      * @return        new seek pointer (relative to beginning of file),
      *                or -1 on error
      */
-    public int seek(int fd, int offset, Whence whence) throws IOException;
+    public long seek(int fd, long offset, Whence whence) throws IOException;
     
+    /**
+     * Write everything changed in the file identified by fd (its
+     * data, its inode and the blocks it points to, and the free map)
+     * back to the disk, and make sure the disk has stored it.
+     *
+     * @param  fd  fd of an open file
+     * @return     0 on success, -1 on error
+     */
+    public int fsync(int fd) throws IOException;
+
     /**
      * Close the file identified by fd.
      *
@@ -122,7 +224,8 @@ public interface FileSystem {
     
     /**
      * Delete the file specified by inumber. It is an error to delete
-     * an open file.
+     * an open file, a directory or a file that has a name (see
+     * unlink()).
      *
      * Must free the inode and all blocks associated with the file.
      *
@@ -130,4 +233,80 @@ public interface FileSystem {
      * @return         0 on success, -1 on error
      */
     public int delete(int inumber) throws IOException;
+
+    /**
+     * Create n new empty files at once, without opening them.
+     *
+     * Like n calls to create() and close(), but the new inodes are
+     * written back together, each InodeBlock once.
+     *
+     * @param  n number of files to create
+     * @return   inumbers of the new files, null on error (then no
+     *           file is created)
+     */
+    public int[] createBatch(int n) throws IOException;
+
+    /**
+     * Delete several files at once.
+     *
+     * Like delete() on each of them, but the free map and the
+     * InodeBlocks are written back once for the whole batch. It is an
+     * error if any of the files is open, does not exist, is a
+     * directory or has a name; then none of them is deleted.
+     *
+     * @param  inumbers inumbers of the files (none twice)
+     * @return          0 on success, -1 on error
+     */
+    public int deleteBatch(int[] inumbers) throws IOException;
+
+    /**
+     * Create a directory.
+     *
+     * Paths are absolute, with names separated by '/' (e.g.,
+     * "/home/mail"). A name is 1 to Directory.MAX_NAME bytes of UTF-8
+     * and cannot be "." or "..". The root directory "/" is made the
+     * first time a path is used.
+     *
+     * @param  path path of the new directory, whose parent must exist
+     * @return      inumber of the new directory on success, -1 otherwise
+     */
+    public int mkdir(String path) throws IOException;
+
+    /**
+     * Create a new file at a path, like create() but with a name.
+     *
+     * @param  path path of the new file, whose parent directory must
+     *              exist and must not hold the name yet
+     * @return      fd of the new open file on success, -1 otherwise
+     */
+    public int create(String path) throws IOException;
+
+    /**
+     * Open the file at a path, like open(int).
+     *
+     * @param  path path of the file (not a directory)
+     * @return      fd of the open file on success, -1 otherwise
+     */
+    public int open(String path) throws IOException;
+
+    /**
+     * Look up a path.
+     *
+     * @param  path path of a file or directory
+     * @return      its inumber, -1 if there is none
+     */
+    public int lookup(String path) throws IOException;
+
+    /**
+     * Remove a name from its directory and delete the file or
+     * directory it stands for. It is an error to unlink an open file
+     * or a directory that is not empty.
+     *
+     * Files with a name can only be deleted this way: delete(int)
+     * refuses them.
+     *
+     * @param  path path of the file or directory
+     * @return      0 on success, -1 on error
+     */
+    public int unlink(String path) throws IOException;
 }
@@ -1,4 +1,15 @@
 package fileSystem;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Tracks open files and provides an interface to interact with files.
  *
@@ -13,10 +24,71 @@ package fileSystem;
  * for each "instance" of an open file (allowing multiple seek
  * pointers into the same file), and there is a per-process table
  * mapping instances to file descriptors.}
+ *
+ * A FileTable is safe to use from several threads without locks:
+ * free descriptors are kept on a lock-free stack, which allocate()
+ * pops and free() pushes, so two threads never get the same one. For
+ * each open file, a table keyed by inumber holds the number of
+ * descriptors open on it and which ones they are, so whether a file
+ * is open is known without scanning the descriptors. The state of an
+ * open descriptor (seek pointer, cached blocks, ...) is meant to be
+ * used by one thread at a time.
+ *
+ * A table may also hold reserved descriptors, numbered after the
+ * maxFiles ordinary ones and kept on a stack of their own, so that
+ * the file system can open files for itself (see
+ * allocateReserved()) however many its users hold.
  */
 public class FileTable {
-    public static final int MAX_FILES = 20;
-    private FileDescriptor[] fds = new FileDescriptor[MAX_FILES];
+    public static final int MAX_FILES = 20; // default number of descriptors
+    private final int maxFiles;
+    private AtomicReferenceArray<FileDescriptor> fds;
+
+    // Stacks of free descriptors: the low word of a head is the top fd
+    // plus one (0 if empty) and the high word is bumped by every
+    // change, so that a pop cannot succeed on a stale top. next holds
+    // the fd plus one below each fd on its stack.
+    private AtomicLong         head         = new AtomicLong();
+    private AtomicLong         reservedHead = new AtomicLong();
+    private AtomicIntegerArray next;
+
+    // Open files by inumber
+    private ConcurrentHashMap<Integer, OpenFile> files =
+        new ConcurrentHashMap<Integer, OpenFile>();
+
+    // Marks a descriptor returned by allocate() until add() is called
+    private static final FileDescriptor RESERVED =
+        new FileDescriptor(null, 0, null);
+
+    /**
+     * A file open through one or more descriptors: how many (or -1
+     * once the last one is freed and it is being removed from the
+     * table), which ones, and the indirect blocks of the file read so
+     * far, which they share.
+     */
+    private static class OpenFile {
+        private AtomicInteger count = new AtomicInteger();
+        private Set<Integer> fds = ConcurrentHashMap.newKeySet();
+        private Map<Integer, IndirectBlock> indirectBlocks =
+            new ConcurrentHashMap<Integer, IndirectBlock>();
+    }
+
+    /**
+     * The last indirect block used to map logical blocks to data
+     * blocks through a descriptor: its contents, its block number, and
+     * the first logical block it maps.
+     */
+    private static class Leaf {
+        private final int first;
+        private final int blockNum;
+        private final IndirectBlock block;
+
+        public Leaf(int first, int blockNum, IndirectBlock block) {
+            this.first    = first;
+            this.blockNum = blockNum;
+            this.block    = block;
+        }
+    }
 
     /**
      * An ADT that contains data about a file. FileTable uses
@@ -28,17 +100,38 @@ public class FileTable {
      *   <li>inode</li>
      *   <li>inumber</li>
      *   <li>seek pointer</li>
+     *   <li>indirect blocks of the file read so far (shared by all
+     *       descriptors open on the same file)</li>
+     *   <li>the last indirect block used to map a logical block to a
+     *       data block, and the first logical block it maps</li>
+     *   <li>a DirectBlock reused for every block read or written
+     *       through the descriptor</li>
+     *   <li>the data blocks and indirect blocks changed through the
+     *       descriptor and not yet written back</li>
+     *   <li>the run of data blocks reserved for the write in progress
+     *       through the descriptor</li>
+     *   <li>the read-ahead state of the descriptor</li>
      * </ul>
      */
     private static class FileDescriptor {
         private Inode inode;
         private int inumber;
-        private int seekPtr;
+        private long seekPtr;
+        private Map<Integer, IndirectBlock> indirectBlocks;
+        private volatile Leaf leaf; // replaced whole, for readers in parallel
+        private DirectBlock block = new DirectBlock(null, 0, 0, false);
+        private BitSet dirtyBlocks         = new BitSet();
+        private BitSet dirtyIndirectBlocks = new BitSet();
+        private int preallocNext;
+        private int preallocLeft;
+        private ReadAhead readAhead = new ReadAhead();
     
-        public FileDescriptor(Inode newInode, int newInumber) {
-            inode   = newInode;
-            inumber = newInumber;
-            seekPtr = 0;
+        public FileDescriptor(Inode newInode, int newInumber,
+                              Map<Integer, IndirectBlock> newIndirectBlocks) {
+            inode          = newInode;
+            inumber        = newInumber;
+            seekPtr        = 0;
+            indirectBlocks = newIndirectBlocks;
         }
     
         public Inode getInode() {
@@ -49,33 +142,141 @@ public class FileTable {
             return inumber;
         }
     
-        public int getSeekPointer() {
+        public long getSeekPointer() {
             return seekPtr;
         }
 
-        public void setSeekPointer(int p) {
+        public void setSeekPointer(long p) {
             seekPtr = p;
         }
 
-        public void setFileSize(int size) {
+        public void setFileSize(long size) {
             inode.size = size;
         }
+
+        public Map<Integer, IndirectBlock> getIndirectBlocks() {
+            return indirectBlocks;
+        }
+
+        public DirectBlock getDirectBlock() {
+            return block;
+        }
+
+        public BitSet getDirtyBlocks() {
+            return dirtyBlocks;
+        }
+
+        public BitSet getDirtyIndirectBlocks() {
+            return dirtyIndirectBlocks;
+        }
+
+        public ReadAhead getReadAhead() {
+            return readAhead;
+        }
+
+        public int getPreallocNext() {
+            return preallocNext;
+        }
+
+        public int getPreallocLeft() {
+            return preallocLeft;
+        }
+
+        public void setPrealloc(int next, int left) {
+            preallocNext = next;
+            preallocLeft = left;
+        }
+
+        public IndirectBlock getLeaf(int first) {
+            Leaf last = leaf;
+            return last != null && last.first == first ? last.block : null;
+        }
+
+        public int getLeafNum() {
+            Leaf last = leaf;
+            return last != null ? last.blockNum : 0;
+        }
+
+        public void setLeaf(int first, int blockNum, IndirectBlock block) {
+            leaf = new Leaf(first, blockNum, block);
+        }
+    }
+
+    /**
+     * Construct a FileTable with MAX_FILES descriptors.
+     */
+    public FileTable() {
+        this(MAX_FILES);
+    }
+
+    /**
+     * Construct a FileTable with maxFiles descriptors.
+     */
+    public FileTable(int maxFiles) {
+        this(maxFiles, 0);
+    }
+
+    /**
+     * Construct a FileTable with maxFiles descriptors, and reserved
+     * more that only allocateReserved() hands out.
+     */
+    public FileTable(int maxFiles, int reserved) {
+        this.maxFiles = maxFiles;
+        fds  = new AtomicReferenceArray<FileDescriptor>(maxFiles + reserved);
+        next = new AtomicIntegerArray(maxFiles + reserved);
+        for(int fd = maxFiles + reserved - 1; fd >= 0; --fd)
+            push(fd);
+    }
+
+    /**
+     * Get the number of file descriptors of the table, not counting
+     * the reserved ones.
+     */
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * Get the number of file descriptors of the table, reserved ones
+     * included (valid descriptors are below it).
+     */
+    public int size() {
+        return fds.length();
     }
     
     /**
-     * Return the next free file descriptor position(fd).
+     * Return the next free file descriptor position(fd), reserving it
+     * until add() or free() is called. Descriptors start out in
+     * increasing order; after that, the one freed last is reused
+     * first.
      *
      * @return next free file descriptor, or -1 if the file table is
      *         full
      */
     public int allocate() {
-        for(int fd = 0; fd < MAX_FILES; fd++) {
-            if(fds[fd] == null) {
-                return fd;
-            }
+        int fd = pop(head);
+        if(fd < 0) {
+            System.err.println("Cannot open file (filetable is full)");
+            return -1;
         }
-        System.err.println("Cannot open file (filetable is full)");
-        return -1;
+        fds.set(fd, RESERVED);
+        return fd;
+    }
+
+    /**
+     * Like allocate(), but return one of the reserved descriptors.
+     *
+     * @return next free reserved descriptor, or -1 if all of them are
+     *         in use
+     */
+    public int allocateReserved() {
+        int fd = pop(reservedHead);
+        if(fd < 0) {
+            System.err.println("Cannot open file (reserved descriptors are in use)");
+            return -1;
+        }
+        fds.set(fd, RESERVED);
+        return fd;
     }
     
     /**
@@ -88,9 +289,11 @@ public class FileTable {
      * @return         0 on success, -1 otherwise
      */
     public int add(Inode inode, int inumber, int fd) {
-        if(fds[fd] != null)
+        if(fds.get(fd) != RESERVED)
             return -1;
-        fds[fd] = new FileDescriptor(inode, inumber);
+        OpenFile file = retain(inumber);
+        file.fds.add(fd);
+        fds.set(fd, new FileDescriptor(inode, inumber, file.indirectBlocks));
         return 0;
     }
     
@@ -100,7 +303,12 @@ public class FileTable {
      * @param fd The file descriptor to delete
      */
     public void free(int fd) {
-        fds[fd] = null;
+        FileDescriptor old = fds.getAndSet(fd, null);
+        if(old == null)
+            return;
+        if(old != RESERVED)
+            release(old.getInumber(), fd);
+        push(fd);
     }
 
     /**
@@ -110,13 +318,14 @@ public class FileTable {
      * @return   true if the fd is valid, false otherwise
      */
     public boolean isValid(int fd) {
-        if(fd < 0 || fd >= MAX_FILES) {
+        if(fd < 0 || fd >= fds.length()) {
             System.err.println(
                 "ERROR: Invalid file descriptor (must be 0 <= fd <= " +
-                MAX_FILES + ") : " + fd);
+                fds.length() + ") : " + fd);
             return false;
         }
-        if(fds[fd] == null) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null || file == RESERVED) {
             return false;
         }
         return true;
@@ -129,10 +338,11 @@ public class FileTable {
      * @return    null if the file descriptor at fd does not exist
      */
     public Inode getInode(int fd) {
-        if(fds[fd] == null) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
             return null;
         }
-        return fds[fd].getInode();
+        return file.getInode();
     }
 
     /**
@@ -142,10 +352,11 @@ public class FileTable {
      * @return    0 if invalid, otherwise Inumber
      */
     public int getInumber(int fd) {
-        if(fds[fd] == null){
+        FileDescriptor file = fds.get(fd);
+        if(file == null){
             return 0;
         }
-        return fds[fd].getInumber();
+        return file.getInumber();
     }
 
     /**
@@ -154,11 +365,12 @@ public class FileTable {
      * @param  fd the identifier of a file descriptor
      * @return    seek pointer, -1 if fd is invalid
      */
-    public int getSeekPointer(int fd) {
-        if(fds[fd] == null){
+    public long getSeekPointer(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null){
             return -1;
         }
-        return fds[fd].getSeekPointer();
+        return file.getSeekPointer();
     }
 
     /**
@@ -168,11 +380,12 @@ public class FileTable {
      * @param  p  the new seek pointer
      * @return    0 on success, -1 otherwise
      */
-    public int setSeekPointer(int fd, int p) {
-        if(fds[fd] == null) {
+    public int setSeekPointer(int fd, long p) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
             return -1;
         }
-        fds[fd].setSeekPointer(p);
+        file.setSeekPointer(p);
         return 0;
     }
 
@@ -183,28 +396,318 @@ public class FileTable {
      * @param  size the new size of the file
      * @return      0 on success, -1 otherwise
      */
-    public int setFileSize(int fd, int size) {
-        if(fds[fd] == null) {
+    public int setFileSize(int fd, long size) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
             return -1;
         }
-        fds[fd].setFileSize(size);
+        file.setFileSize(size);
         return 1;
     }
 
+    /**
+     * Get a cached indirect block of the file open as fd.
+     *
+     * @param  fd       the identifier of a file descriptor
+     * @param  blockNum block number of the indirect block
+     * @return          the cached block, or null if it is not cached
+     *                  or fd is invalid
+     */
+    public IndirectBlock getIndirectBlock(int fd, int blockNum) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getIndirectBlocks().get(blockNum);
+    }
+
+    /**
+     * Cache an indirect block of the file open as fd, unless it is
+     * cached already. The block stays cached until every descriptor
+     * open on the file is freed.
+     *
+     * Two readers of a file may both miss the cache and read the same
+     * indirect block; only the first to put it wins, and both must go
+     * on with the instance returned, so that pointers set later are
+     * never set in a copy that is not written back.
+     *
+     * @param  fd       the identifier of a file descriptor
+     * @param  blockNum block number of the indirect block
+     * @param  block    contents of the indirect block
+     * @return          the cached block (block, or the one cached
+     *                  before), null if fd is invalid
+     */
+    public IndirectBlock putIndirectBlock(int fd, int blockNum, IndirectBlock block) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        IndirectBlock cached = file.getIndirectBlocks().putIfAbsent(blockNum, block);
+        return cached != null ? cached : block;
+    }
+
+    /**
+     * Get the DirectBlock reused for the blocks read or written
+     * through fd. Point it at a block with DirectBlock.set().
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    the DirectBlock, or null if fd is invalid
+     */
+    public DirectBlock getDirectBlock(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getDirectBlock();
+    }
+
+    /**
+     * Get the block numbers of the data blocks written through fd
+     * that have not been written back yet. The caller updates the
+     * returned set.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    the set of dirty data blocks, or null if fd is invalid
+     */
+    public BitSet getDirtyBlocks(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getDirtyBlocks();
+    }
+
+    /**
+     * Get the block numbers of the indirect blocks (see
+     * getIndirectBlock()) changed through fd that have not been
+     * written back yet. The caller updates the returned set.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    the set of dirty indirect blocks, or null if fd is
+     *            invalid
+     */
+    public BitSet getDirtyIndirectBlocks(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getDirtyIndirectBlocks();
+    }
+
+    /**
+     * Get the read-ahead state of fd, which decides what to prefetch
+     * for reads through it.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    the read-ahead state, or null if fd is invalid
+     */
+    public ReadAhead getReadAhead(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getReadAhead();
+    }
+
+    /**
+     * Get the next block of the run reserved for the write in
+     * progress through fd.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    block number, or 0 if fd is invalid
+     */
+    public int getPreallocNext(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return 0;
+        }
+        return file.getPreallocNext();
+    }
+
+    /**
+     * Get the number of blocks left in the run reserved for the write
+     * in progress through fd.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    number of blocks, 0 if fd is invalid
+     */
+    public int getPreallocLeft(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return 0;
+        }
+        return file.getPreallocLeft();
+    }
+
+    /**
+     * Set the run of blocks reserved for the write in progress through
+     * fd.
+     *
+     * @param  fd   the identifier of a file descriptor
+     * @param  next next block of the run
+     * @param  left number of blocks left in the run
+     * @return      0 on success, -1 otherwise
+     */
+    public int setPrealloc(int fd, int next, int left) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return -1;
+        }
+        file.setPrealloc(next, left);
+        return 0;
+    }
+
+    /**
+     * Get the indirect block that maps the logical blocks starting at
+     * first to data blocks, if it was the last one used through fd.
+     *
+     * @param  fd    the identifier of a file descriptor
+     * @param  first first logical block mapped by the indirect block
+     * @return       the indirect block, or null if it is not the last
+     *               one used or fd is invalid
+     */
+    public IndirectBlock getLeaf(int fd, int first) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return null;
+        }
+        return file.getLeaf(first);
+    }
+
+    /**
+     * Get the block number of the last indirect block used through fd
+     * to map logical blocks to data blocks.
+     *
+     * @param  fd the identifier of a file descriptor
+     * @return    block number of the indirect block, 0 if there is
+     *            none or fd is invalid
+     */
+    public int getLeafNum(int fd) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return 0;
+        }
+        return file.getLeafNum();
+    }
+
+    /**
+     * Remember the indirect block last used through fd to map logical
+     * blocks to data blocks.
+     *
+     * @param  fd       the identifier of a file descriptor
+     * @param  first    first logical block mapped by the indirect block
+     * @param  blockNum block number of the indirect block
+     * @param  block    contents of the indirect block
+     * @return          0 on success, -1 otherwise
+     */
+    public int setLeaf(int fd, int first, int blockNum, IndirectBlock block) {
+        FileDescriptor file = fds.get(fd);
+        if(file == null) {
+            return -1;
+        }
+        file.setLeaf(first, blockNum, block);
+        return 0;
+    }
+
     /**
      * Get the file descriptor (fd) from a file's inumber.
      *
      * @param  inumber the inumber of a file
-     * @return         the fd on success, -1 on error
+     * @return         the fd of one of the descriptors open on the
+     *                 file, or -1 if it is not open
      */
     public int getFdFromInumber(int inumber) {
-        for(int fd = 0; fd < MAX_FILES; fd++) {
-            if(fds[fd] != null) {
-                if (fds[fd].getInumber() == inumber) {
-                    return fd;
-                }
-            }       
+        OpenFile file = files.get(inumber);
+        if(file != null) {
+            Iterator<Integer> it = file.fds.iterator();
+            if(it.hasNext()) {
+                return it.next();
+            }
         }
         return -1;
     }
+
+    /**
+     * Get every file descriptor open on a file.
+     *
+     * @param  inumber the inumber of a file
+     * @return         the fds, none if the file is not open
+     */
+    public int[] getFdsFromInumber(int inumber) {
+        OpenFile file = files.get(inumber);
+        if(file == null) {
+            return new int[0];
+        }
+        int[] result = new int[file.fds.size()];
+        int n = 0;
+        for(int fd : file.fds) {
+            if(n == result.length) {
+                break;
+            }
+            result[n++] = fd;
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Count the descriptors of a file in the table of open files,
+     * adding the file if this is the first.
+     */
+    private OpenFile retain(int inumber) {
+        for(;;) {
+            OpenFile file = files.get(inumber);
+            if(file == null) {
+                OpenFile other = files.putIfAbsent(inumber, file = new OpenFile());
+                if(other != null)
+                    file = other;
+            }
+            int count = file.count.get();
+            if(count >= 0 && file.count.compareAndSet(count, count + 1))
+                return file;
+            // The last descriptor of the file was just freed: help
+            // remove it, then start over with a new entry
+            if(count < 0)
+                files.remove(inumber, file);
+        }
+    }
+
+    /**
+     * Stop counting descriptor fd of a file in the table of open
+     * files, removing the file if it was the last.
+     */
+    private void release(int inumber, int fd) {
+        OpenFile file = files.get(inumber);
+        file.fds.remove(fd);
+        if(file.count.decrementAndGet() == 0 && file.count.compareAndSet(0, -1))
+            files.remove(inumber, file);
+    }
+
+    /**
+     * Push a free descriptor on its stack of free descriptors.
+     */
+    private void push(int fd) {
+        AtomicLong head = fd < maxFiles ? this.head : reservedHead;
+        long h;
+        do {
+            h = head.get();
+            next.set(fd, (int)h);
+        } while(! head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (fd + 1)));
+    }
+
+    /**
+     * Pop a free descriptor off a stack of free descriptors.
+     *
+     * @return the descriptor, or -1 if there is none
+     */
+    private int pop(AtomicLong head) {
+        for(;;) {
+            long h = head.get();
+            int top = (int)h;
+            if(top == 0)
+                return -1;
+            int below = next.get(top - 1);
+            if(head.compareAndSet(h, (((h >>> 32) + 1) << 32) | below))
+                return top - 1;
+        }
+    }
 }
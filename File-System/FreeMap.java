@@ -1,4 +1,7 @@
 package fileSystem;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Provides the mechanism for interacting with bits in the
  * free map, regardless of the block in which they reside.
@@ -12,12 +15,40 @@ package fileSystem;
  * Will also save dirty freemap blocks whenever you call
  * save(). Freemap blocks are automatically marked dirty whenever
  * you modifiy them.
+ *
+ * Searches do not walk the on-disk bitmaps bit by bit. The FreeMap
+ * keeps a copy of the whole map as an array of longs (bit i of the
+ * array is data block dblock0() + i, 1 meaning used) and scans it a
+ * word at a time, starting from a cursor below which every block is
+ * known to be used. The on-disk bitmaps are updated alongside, so
+ * their layout is unchanged.
+ *
+ * A summary bitmap sits above the words: one bit per group of
+ * GROUP_WORDS words (4096 blocks), set while the group still has a
+ * free block. Searches skip full groups through the summary, so
+ * finding a free block costs about the same however full the front
+ * of the disk is.
+ *
+ * A FreeMap is safe to use from several threads. Each group has its
+ * own lock and its own cursor (every bit of the group below it is
+ * used), so that find() and clear() on different groups do not
+ * contend: find() skips a group that another thread holds and takes
+ * the next group with a free block instead. findRun() and save() take
+ * every group lock, in order.
  */
 public class FreeMap {
     private Disk           disk;
     private SuperBlock     superBlock;
     private FreeMapBlock[] freeMapBlocks;
     private boolean[]      blockIsDirty;
+    private static final int GROUP_WORDS = 64; // words per summary bit
+
+    private long[]          words;   // in-memory copy of the whole map
+    private AtomicLongArray summary; // bit g set if group g has a free bit
+    private int             nbits;   // number of data blocks in the map
+    private int[]           cursors; // per group: every bit below is set
+    private ReentrantLock[] locks;   // per group
+    private int             entriesPerBlock; // bits in a freemap block
 
     /**
      * Construct a new FreeMap. A FreeMap object caches all freemap
@@ -27,11 +58,31 @@ public class FreeMap {
         this.disk       = disk;
         this.superBlock = superBlock;
         freeMapBlocks   = new FreeMapBlock[superBlock.msize];
+        entriesPerBlock = superBlock.blockSize() * 8;
         blockIsDirty    = new boolean[superBlock.msize + 1];
         for(int i = 0; i < superBlock.msize; ++i) {
-            freeMapBlocks[i] = new FreeMapBlock();
+            freeMapBlocks[i] = new FreeMapBlock(superBlock.blockSize());
             disk.read(superBlock.mblock0() + i, freeMapBlocks[i]);
         }
+        nbits = Math.max(0, superBlock.dsize());
+        words = new long[(nbits + 63) / 64];
+        load(superBlock.freeMap, 0);
+        for(int i = 0; i < freeMapBlocks.length; ++i)
+            load(freeMapBlocks[i].map,
+                 superBlock.freeMap.length * 8 +
+                 i * entriesPerBlock);
+        if(nbits % 64 != 0)
+            words[words.length - 1] |= -1L << nbits; // past the end: used
+        int groups = (words.length + GROUP_WORDS - 1) / GROUP_WORDS;
+        summary = new AtomicLongArray((groups + 63) / 64);
+        cursors = new int[groups];
+        locks   = new ReentrantLock[groups];
+        for(int g = 0; g < groups; ++g) {
+            cursors[g] = g * GROUP_WORDS * 64;
+            locks[g]   = new ReentrantLock();
+            if(! groupIsFull(g))
+                setSummary(g, true);
+        }
     }
 
     /**
@@ -45,12 +96,68 @@ public class FreeMap {
      * @return block number of free data block or 0 if no free space
      */
     public int find() {
-        for(int n = superBlock.dblock0(); n < superBlock.size; ++n)
-            if(new Bit(n).set())
-                return n; // found and set a clear bit at n
+        // First try only the groups no other thread is using, then
+        // wait for busy ones.
+        //
+        for(int pass = 0; pass < 2; ++pass) {
+            for(int g = nextGroup(0); g >= 0; g = nextGroup(g + 1)) {
+                if(pass == 0 && ! locks[g].tryLock())
+                    continue;
+                if(pass == 1)
+                    locks[g].lock();
+                try {
+                    int i = nextFreeInGroup(g);
+                    if(i < 0)
+                        continue;
+                    set(i);
+                    cursors[g] = i + 1;
+                    return superBlock.dblock0() + i;
+                } finally {
+                    locks[g].unlock();
+                }
+            }
+        }
         return 0;
     }
 
+    /**
+     * Find a run of count contiguous free data blocks and set their
+     * bits.
+     *
+     * Uses best fit: the shortest free run that is long enough is
+     * chosen (the first one on ties), so that large free runs are
+     * kept for large files. As with find(), you must call save() when
+     * you are done with the operation.
+     *
+     * @param  count number of blocks wanted (at least 1)
+     * @return       first block number of the run, or 0 if there is no
+     *               run of count free blocks
+     */
+    public int findRun(int count) {
+        lockAll();
+        try {
+            int best = -1, bestLength = Integer.MAX_VALUE;
+            for(int i = nextFree(0); i < nbits; ) {
+                int end = nextUsed(i);
+                int length = end - i;
+                if(length >= count && length < bestLength) {
+                    best       = i;
+                    bestLength = length;
+                    if(length == count)
+                        break; // cannot fit any better
+                }
+                i = nextFree(end);
+            }
+            if(best < 0)
+                return 0;
+            for(int i = best; i < best + count; ++i)
+                set(i);
+            return superBlock.dblock0() + best;
+        } finally {
+            unlockAll();
+        }
+    }
+
     /**
      * Clear a freemap bit (free the corresponding data block).
      *
@@ -62,7 +169,23 @@ public class FreeMap {
      * @param blockNum block number of data block
      */
     public void clear(int blockNum) {
-        new Bit(blockNum).clear();
+        int i = blockNum - superBlock.dblock0();
+        if(i < 0 || i >= nbits)
+            return;
+        int g = i >>> 12;
+        locks[g].lock();
+        try {
+            if((words[i >>> 6] & (1L << i)) == 0)
+                return;
+            words[i >>> 6] &= ~(1L << i);
+            setSummary(g, true);
+            Bitwise.clear(mapIndex(i), map(i));
+            markDirty(i);
+            if(i < cursors[g])
+                cursors[g] = i;
+        } finally {
+            locks[g].unlock();
+        }
     }
 
     /**
@@ -73,95 +196,208 @@ public class FreeMap {
      * that set or cleared freemap bits.
      */
     public void save() {
-        if(blockIsDirty[0]) {
-            disk.write(0, superBlock);
-            blockIsDirty[0] = false;
-        }
-        for(int i = 0; i < freeMapBlocks.length; ++i) {
-            if(blockIsDirty[i + 1]) {
-                disk.write(superBlock.mblock0() + i, freeMapBlocks[i]);
-                blockIsDirty[i + 1] = false;
+        lockAll();
+        try {
+            if(blockIsDirty[0]) {
+                disk.write(0, superBlock);
+                blockIsDirty[0] = false;
+            }
+            for(int i = 0; i < freeMapBlocks.length; ++i) {
+                if(blockIsDirty[i + 1]) {
+                    disk.write(superBlock.mblock0() + i, freeMapBlocks[i]);
+                    blockIsDirty[i + 1] = false;
+                }
             }
+        } finally {
+            unlockAll();
         }
     }
 
     /**
-     * Represents an individual bit within the freemap, and provides
-     * the means to find, check, set, and clear it, and to mark its
-     * containing block dirty.
-     */
-    private class Bit {
-        private byte[] map;    // bitmap within a block
-        private int    mapi;   // index of bit in map
-        private int    dirtyi; // index of this block in blockIsDirty
-
-        /**
-         * Find the portion of the bitmap and offset within that
-         * portion where the bit corresponding to blockNum is located.
-         *
-         * @param blockNum Block number of data block on disk
-         */
-        public Bit(int blockNum) {
-            blockNum -= superBlock.dblock0();
-            if(blockNum < superBlock.freeMap.length * 8) {
-                // bit is in the map stored in the SuperBlock
-                mapi       = blockNum;
-                map        = superBlock.freeMap;
-                dirtyi     = 0;
-            } else {
-                // bit is in some FreeMapBlock after the SuperBlock
-                blockNum  -= superBlock.freeMap.length * 8;
-                int i      = blockNum / FreeMapBlock.ENTRIES_PER_BLOCK;
-                mapi       = blockNum % FreeMapBlock.ENTRIES_PER_BLOCK;
-                map        = freeMapBlocks[i].map;
-                dirtyi     = i + 1; // 0th index is for SuperBlock
-            }
+     * Set bit i of the map (which must be clear), both in words and
+     * in the on-disk bitmap, and mark its block dirty. The lock of
+     * the group of bit i must be held.
+     */
+    private void set(int i) {
+        int w = i >>> 6;
+        words[w] |= 1L << i;
+        if(words[w] == -1L && groupIsFull(w / GROUP_WORDS))
+            setSummary(i >>> 12, false);
+        Bitwise.set(mapIndex(i), map(i));
+        markDirty(i);
+    }
+
+    /**
+     * Find the first clear bit of group g at or after its cursor. The
+     * lock of the group must be held.
+     *
+     * @return index of the bit, or -1 if the group is full
+     */
+    private int nextFreeInGroup(int g) {
+        int i   = cursors[g];
+        int end = Math.min(words.length, (g + 1) * GROUP_WORDS);
+        int w   = i >>> 6;
+        if(w >= end)
+            return -1;
+        long free = ~words[w] & (-1L << i);
+        while(free == 0 && ++w < end)
+            free = ~words[w];
+        if(free == 0)
+            return -1;
+        return w * 64 + Long.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * Set or clear the summary bit of group g, which says whether the
+     * group has a free block.
+     */
+    private void setSummary(int g, boolean free) {
+        int  w   = g >>> 6;
+        long bit = 1L << g;
+        for(;;) {
+            long old = summary.get(w);
+            long now = free ? old | bit : old & ~bit;
+            if(old == now || summary.compareAndSet(w, old, now))
+                return;
         }
+    }
 
-        /**
-         * Mark the block containing this bit dirty.
-         */
-        private void markDirty() {
-            blockIsDirty[dirtyi] = true;
+    /**
+     * Take the lock of every group, in order.
+     */
+    private void lockAll() {
+        for(ReentrantLock lock : locks)
+            lock.lock();
+    }
+
+    /**
+     * Release the lock of every group.
+     */
+    private void unlockAll() {
+        for(ReentrantLock lock : locks)
+            lock.unlock();
+    }
+
+    /**
+     * Find the first clear bit at or after bit i.
+     *
+     * @return index of the bit, or nbits if there is none
+     */
+    private int nextFree(int i) {
+        if(i >= nbits)
+            return nbits;
+        int w = i >>> 6;
+        long free = ~words[w] & (-1L << i);
+        int group = w / GROUP_WORDS;
+        int end = Math.min(words.length, (group + 1) * GROUP_WORDS);
+        while(free == 0 && ++w < end)
+            free = ~words[w];
+        if(free == 0) {
+            // Nothing left in this group; let the summary pick the next
+            // group with a free block, which must contain one.
+            int g = nextGroup(group + 1);
+            if(g < 0)
+                return nbits;
+            for(w = g * GROUP_WORDS; (free = ~words[w]) == 0; ++w)
+                ;
         }
+        return w * 64 + Long.numberOfTrailingZeros(free);
+    }
 
-        /**
-         * Check if the bit is set.
-         * 
-         * @return true if the bit is set, false otherwise.
-         */
-        public boolean isset() {
-            return Bitwise.isset(mapi, map);
+    /**
+     * Find the first group at or after group g with a free block.
+     *
+     * @return index of the group, or -1 if there is none
+     */
+    private int nextGroup(int g) {
+        int w = g >>> 6;
+        if(w >= summary.length())
+            return -1;
+        long free = summary.get(w) & (-1L << g);
+        while(free == 0) {
+            if(++w == summary.length())
+                return -1;
+            free = summary.get(w);
         }
+        return w * 64 + Long.numberOfTrailingZeros(free);
+    }
 
-        /**
-         * Set the bit and mark the containing block dirty if it was
-         * clear.
-         *
-         * @return true if the bit changed, false otherwise
-         */
-        public boolean set() {
-            if(! isset()) {
-                Bitwise.set(mapi, map);
-                markDirty();
-                return true;
-            }
-            return false;
+    /**
+     * Check whether every block in group g is used.
+     */
+    private boolean groupIsFull(int g) {
+        int end = Math.min(words.length, (g + 1) * GROUP_WORDS);
+        for(int w = g * GROUP_WORDS; w < end; ++w)
+            if(words[w] != -1L)
+                return false;
+        return true;
+    }
+
+    /**
+     * Find the first set bit at or after bit i.
+     *
+     * @return index of the bit, or nbits if there is none
+     */
+    private int nextUsed(int i) {
+        if(i >= nbits)
+            return nbits;
+        int w = i >>> 6;
+        long used = words[w] & (-1L << i);
+        while(used == 0) {
+            if(++w == words.length)
+                return nbits;
+            used = words[w];
         }
+        return Math.min(nbits, w * 64 + Long.numberOfTrailingZeros(used));
+    }
 
-        /**
-         * Clear the bit and mark the containing block dirty if it was
-         * set.
-         *
-         * @return true if the bit changed, false otherwise
-         */
-        public boolean clear() {
-            if(isset()) {
-                Bitwise.clear(mapi, map);
-                markDirty();
-                return true;
-            }
-            return false;
+    /**
+     * Copy an on-disk bitmap into words.
+     *
+     * Bitwise numbers bits from the end of the array (bit 0 is the
+     * low bit of the last byte), so byte b of map holds bits
+     * (map.length - 1 - b) * 8 onwards.
+     *
+     * @param map   bitmap from the SuperBlock or a FreeMapBlock
+     * @param first index in words of bit 0 of map (a multiple of 8)
+     */
+    private void load(byte[] map, int first) {
+        for(int b = 0; b < map.length; ++b) {
+            int i = first + (map.length - 1 - b) * 8;
+            if(i < nbits)
+                words[i >>> 6] |= (long)(map[b] & 0xff) << (i & 63);
         }
     }
+
+    /**
+     * Get the on-disk bitmap (from the SuperBlock or a FreeMapBlock)
+     * holding bit i.
+     */
+    private byte[] map(int i) {
+        if(i < superBlock.freeMap.length * 8)
+            return superBlock.freeMap;
+        i -= superBlock.freeMap.length * 8;
+        return freeMapBlocks[i / entriesPerBlock].map;
+    }
+
+    /**
+     * Get the index of bit i within the bitmap returned by map(i).
+     */
+    private int mapIndex(int i) {
+        if(i < superBlock.freeMap.length * 8)
+            return i;
+        i -= superBlock.freeMap.length * 8;
+        return i % entriesPerBlock;
+    }
+
+    /**
+     * Mark the block containing bit i dirty.
+     */
+    private void markDirty(int i) {
+        if(i < superBlock.freeMap.length * 8)
+            blockIsDirty[0] = true;
+        else
+            blockIsDirty[1 + (i - superBlock.freeMap.length * 8) /
+                             entriesPerBlock] = true;
+    }
 }
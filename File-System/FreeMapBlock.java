@@ -3,11 +3,24 @@ package fileSystem;
  * Stores 1 bit for each data block. The first bits of the free map
  * are stored in the super block. If the bitmap is too large to be
  * packed entirely into the superblock, then the remaining bits are
- * packed into 1 or more free map blocks.
+ * packed into 1 or more free map blocks. ENTRIES_PER_BLOCK is the
+ * number of bits in a free map block of the default size; a block of
+ * blockSize bytes holds blockSize * 8.
  */
 public class FreeMapBlock {
     public static final int ENTRIES_PER_BLOCK = Disk.BLOCK_SIZE * 8;
-    public byte[] map = new byte[Disk.BLOCK_SIZE];
+    public byte[] map;
+
+    public FreeMapBlock() {
+        this(Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Construct an empty FreeMapBlock for blocks of blockSize bytes.
+     */
+    public FreeMapBlock(int blockSize) {
+        map = new byte[blockSize];
+    }
 
     public String toString() {
         return
@@ -7,18 +7,35 @@ import java.util.Arrays;
  * An IndirectBlock is pointed to either by another indirect block or
  * by the indirect pointers in an Inode (pointers 10, 11, and 12). An
  * indirect block is packed with pointers, meaning that it holds
- * BLOCK_SIZE / POINTER_SIZE pointers.
+ * BLOCK_SIZE / POINTER_SIZE pointers. COUNT is the number for the
+ * default block size; see count() for other sizes.
  */
 public class IndirectBlock {
     public static final int COUNT = Disk.BLOCK_SIZE / 4;
-    public int ptr[] = new int[COUNT];
+    public int ptr[];
 
     public IndirectBlock() {
+        this(Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Construct an empty IndirectBlock for blocks of blockSize bytes.
+     */
+    public IndirectBlock(int blockSize) {
+        ptr = new int[count(blockSize)];
         clear();
     }
+
+    /**
+     * @return number of pointers in an indirect block of blockSize
+     *         bytes
+     */
+    public static int count(int blockSize) {
+        return blockSize / 4;
+    }
     
     public void clear() {
-        for(int i = 0; i < COUNT; i++) {
+        for(int i = 0; i < ptr.length; i++) {
             ptr[i] = 0;
         }
     }
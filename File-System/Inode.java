@@ -1,4 +1,5 @@
 package fileSystem;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -8,12 +9,31 @@ import java.util.Arrays;
  * Use Inodes to describe each file in your file system. Inodes are
  * used to find the blocks that belong to a file, and also contain
  * metadata about the file.
+ *
+ * On disk an inode is 16 ints. The size of a file is 64 bits in
+ * memory; its low 32 bits have an int of their own and bits 32 to 47
+ * go in the high half of the flags int, which keeps inodes written
+ * before sizes grew readable as they are.
+ *
+ * The flags of an allocated inode are 1, or 1 | DIRECTORY for a
+ * directory, with NAMED added once a directory holds a name for it;
+ * they are 0 for a free one.
+ *
+ * A file of up to INLINE_SIZE bytes may keep its data in place of its
+ * pointers (flag INLINE), so that reading it takes no I/O beyond its
+ * InodeBlock and it uses no data block. The bytes are packed into the
+ * ints of ptr high byte first, so on disk they are in file order.
  */
 public class Inode {
     public final static int SIZE = 64; // size in bytes
+    public final static long MAX_SIZE = (1L << 48) - 1; // largest size
+    public final static int DIRECTORY = 2; // flag of a directory (see Directory)
+    public final static int INLINE = 4; // flag of a file whose data is in ptr
+    public final static int NAMED = 8; // flag of a file with a name in a directory
+    public final static int INLINE_SIZE = 13 * 4; // most bytes held inline
     public int flags;
     public int owner;
-    public int size;
+    public long size;
     public int ptr[] = new int[13];
 
     public void allocate() {
@@ -23,6 +43,34 @@ public class Inode {
         Arrays.fill(ptr, 0);
     }
 
+    /**
+     * @return true if the data of the file is held inline
+     */
+    public boolean isInline() {
+        return (flags & INLINE) != 0;
+    }
+
+    /**
+     * Copy len bytes of inline data, starting at byte pos, into buf
+     * at its position, advancing it.
+     */
+    public void readInline(int pos, ByteBuffer buf, int len) {
+        for(int i = pos; i < pos + len; ++i)
+            buf.put((byte)(ptr[i >> 2] >>> (24 - 8 * (i & 3))));
+    }
+
+    /**
+     * Copy len bytes from buf at its position into the inline data,
+     * starting at byte pos, advancing the position of buf. pos + len
+     * must not be more than INLINE_SIZE.
+     */
+    public void writeInline(int pos, ByteBuffer buf, int len) {
+        for(int i = pos; i < pos + len; ++i) {
+            int shift = 24 - 8 * (i & 3);
+            ptr[i >> 2] = (ptr[i >> 2] & ~(0xff << shift)) | (buf.get() & 0xff) << shift;
+        }
+    }
+
     public String toString() {
         return
             "Inode(flags: " + flags +
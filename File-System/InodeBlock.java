@@ -5,17 +5,35 @@ import java.util.Arrays;
  * Blocks on your disk which contain inodes are InodeBlocks.
  *
  * Each InodeBlock on your disk should be packed with Inodes. That is,
- * each inode block holds BLOCK_SIZE / INODE_SIZE inodes.
+ * each inode block holds BLOCK_SIZE / INODE_SIZE inodes. COUNT is
+ * the number for the default block size; see count() for other
+ * sizes.
  */
 public class InodeBlock {
     public static final int COUNT = Disk.BLOCK_SIZE / Inode.SIZE;
-    public Inode inodes[] = new Inode[COUNT];
+    public Inode inodes[];
 
     public InodeBlock() {
-        for (int i = 0; i < COUNT; i++) {
+        this(Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Construct an InodeBlock of free inodes for blocks of blockSize
+     * bytes.
+     */
+    public InodeBlock(int blockSize) {
+        inodes = new Inode[count(blockSize)];
+        for (int i = 0; i < inodes.length; i++) {
             inodes[i] = new Inode();
         }
     }
+
+    /**
+     * @return number of inodes in an inode block of blockSize bytes
+     */
+    public static int count(int blockSize) {
+        return blockSize / Inode.SIZE;
+    }
     
     public String toString() {
         return
@@ -0,0 +1,189 @@
+package fileSystem;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches every InodeBlock of the file system and keeps an index of
+ * which inodes are free.
+ *
+ * The inode blocks are read once, when the InodeTable is
+ * constructed, and the free-inode index is built from their flags at
+ * the same time. After that, finding a free inode and fetching an
+ * inode by inumber never touch the disk. Each inumber maps to a
+ * single Inode object, so every file descriptor open on the same file
+ * shares it.
+ *
+ * Inodes are written back a whole InodeBlock at a time: markDirty()
+ * takes a snapshot of an inode and marks its block dirty, and save()
+ * writes each dirty block once, however many of its inodes changed.
+ * Only the snapshots are written, so changes that another open file
+ * has made to its inode since its last markDirty() (e.g., pointers
+ * to data blocks not yet written back) never reach the disk early.
+ *
+ * An InodeTable is safe to use from several threads. Each inode also
+ * has a ReadWriteLock (see lock()) that MyFileSystem holds while it
+ * reads or changes the file.
+ */
+public class InodeTable {
+    private Disk         disk;
+    private SuperBlock   superBlock;
+    private InodeBlock[] inodeBlocks;
+    private InodeBlock[] saved;  // snapshots taken by markDirty()
+    private AtomicReferenceArray<ReadWriteLock> locks; // made on demand
+    private BitSet       dirty;  // bit n set if inode block n is dirty
+    private BitSet       used;   // bit inumber - 1 set if allocated
+    private int          cursor; // every inode below this one is used
+    private int          perBlock; // inodes in an InodeBlock
+
+    /**
+     * Construct a new InodeTable, reading in all inode blocks.
+     */
+    public InodeTable(Disk disk, SuperBlock superBlock) {
+        this.disk       = disk;
+        this.superBlock = superBlock;
+        perBlock        = InodeBlock.count(superBlock.blockSize());
+        inodeBlocks     = new InodeBlock[Math.max(0, superBlock.isize)];
+        saved           = new InodeBlock[inodeBlocks.length];
+        dirty           = new BitSet(inodeBlocks.length);
+        used            = new BitSet(inodeBlocks.length * perBlock);
+        locks           = new AtomicReferenceArray<ReadWriteLock>(
+                              inodeBlocks.length * perBlock);
+        for(int n = 0; n < inodeBlocks.length; ++n) {
+            inodeBlocks[n] = new InodeBlock(superBlock.blockSize());
+            saved[n]       = new InodeBlock(superBlock.blockSize());
+            disk.read(superBlock.iblock0() + n, inodeBlocks[n]);
+            for(int o = 0; o < perBlock; ++o) {
+                copy(inodeBlocks[n].inodes[o], saved[n].inodes[o]);
+                if(inodeBlocks[n].inodes[o].flags != 0)
+                    used.set(n * perBlock + o);
+            }
+        }
+    }
+
+    /**
+     * Find a free inode and allocate it.
+     *
+     * You must call save() to write the new inode to disk.
+     *
+     * @return inumber of the new inode, or 0 if there are no free
+     *         inodes
+     */
+    public synchronized int allocate() {
+        int i = used.nextClearBit(cursor);
+        cursor = i;
+        if(i >= limit())
+            return 0;
+        used.set(i);
+        cursor = i + 1;
+        get(i + 1).allocate();
+        markDirty(i + 1);
+        return i + 1;
+    }
+
+    /**
+     * Find n free inodes and allocate them all, or none if there are
+     * fewer than n. Free inodes are taken lowest first, so they fill
+     * as few InodeBlocks as they can, and each of those is written
+     * once by the next save().
+     *
+     * @return inumbers of the new inodes, or null if there are not
+     *         enough free inodes
+     */
+    public synchronized int[] allocate(int n) {
+        int taken = used.cardinality() - (used.get(limit()) ? 1 : 0);
+        if(limit() - taken < n)
+            return null;
+        int[] inumbers = new int[n];
+        for(int k = 0; k < n; ++k)
+            inumbers[k] = allocate();
+        return inumbers;
+    }
+
+    /**
+     * Get the number of inodes that can be allocated: inumbers run
+     * from 1 to isize * perBlock - 1, the last inode of the last
+     * InodeBlock being out of range (see
+     * MyFileSystem.inumberIsValid()).
+     */
+    private int limit() {
+        return Math.max(0, inodeBlocks.length * perBlock - 1);
+    }
+
+    /**
+     * Free an inode.
+     *
+     * You must call save() to write the change to disk.
+     *
+     * @param inumber inumber of the inode to free
+     */
+    public synchronized void free(int inumber) {
+        get(inumber).flags = 0;
+        used.clear(inumber - 1);
+        markDirty(inumber);
+        if(inumber - 1 < cursor)
+            cursor = inumber - 1;
+    }
+
+    /**
+     * Get the cached inode for an inumber. Changes made to it are
+     * only written back after markDirty() and save(). Hold the lock
+     * of the inode (see lock()) while using it.
+     *
+     * @param  inumber inumber of the inode (must be in range)
+     * @return         the cached inode
+     */
+    public Inode get(int inumber) {
+        return inodeBlocks[(inumber - 1) / perBlock]
+            .inodes[(inumber - 1) % perBlock];
+    }
+
+    /**
+     * Get the lock of an inode, which readers of the file hold for
+     * reading and writers (and open() and delete()) hold for writing.
+     *
+     * @param  inumber inumber of the inode (must be in range)
+     * @return         the lock
+     */
+    public ReadWriteLock lock(int inumber) {
+        ReadWriteLock lock = locks.get(inumber - 1);
+        if(lock == null) {
+            locks.compareAndSet(inumber - 1, null, new ReentrantReadWriteLock());
+            lock = locks.get(inumber - 1);
+        }
+        return lock;
+    }
+
+    /**
+     * Take a snapshot of an inode to be written by the next save(),
+     * and mark the InodeBlock holding it dirty.
+     *
+     * @param inumber inumber of the inode that changed
+     */
+    public synchronized void markDirty(int inumber) {
+        int n = (inumber - 1) / perBlock;
+        int o = (inumber - 1) % perBlock;
+        copy(inodeBlocks[n].inodes[o], saved[n].inodes[o]);
+        dirty.set(n);
+    }
+
+    /**
+     * Write every dirty InodeBlock to disk.
+     */
+    public synchronized void save() {
+        for(int n = dirty.nextSetBit(0); n >= 0; n = dirty.nextSetBit(n + 1))
+            disk.write(superBlock.iblock0() + n, saved[n]);
+        dirty.clear();
+    }
+
+    /**
+     * Copy the fields of one inode into another.
+     */
+    private static void copy(Inode from, Inode to) {
+        to.flags = from.flags;
+        to.owner = from.owner;
+        to.size  = from.size;
+        System.arraycopy(from.ptr, 0, to.ptr, 0, from.ptr.length);
+    }
+}
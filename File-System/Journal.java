@@ -0,0 +1,232 @@
+package fileSystem;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of metadata blocks, kept in the jsize blocks
+ * that formatDisk reserves after the freemap blocks.
+ *
+ * Metadata changes are committed as transactions: the new contents
+ * of every block in a transaction are appended to the journal in a
+ * single sequential write, and only then written to their home
+ * blocks through the block cache, which writes them to disk whenever
+ * it likes (a lazy checkpoint). disk.force() is the write barrier in
+ * between, so a home block never reaches the disk before the
+ * transaction that logged it; checkpoint() forces the home blocks in
+ * the same way before the journal is reused. After a crash, replay() copies every
+ * committed transaction back to the home blocks, so the metadata on
+ * disk is always that of the last committed transaction.
+ *
+ * The first journal block is a header holding the sequence number
+ * of the first transaction to replay and where it starts. Each
+ * transaction is one or more descriptor blocks (listing the home
+ * block numbers of the images that follow them), the images, and a
+ * commit block carrying a CRC of everything before it. A transaction
+ * counts only if its commit block is intact and its sequence number
+ * is the next one expected.
+ *
+ * When the journal is full, checkpoint() writes the home blocks of
+ * every logged transaction to disk and starts the journal over.
+ */
+public class Journal {
+    private static final int MAGIC      = 0x4a524e4c; // "JRNL"
+    private static final int DESCRIPTOR = 1;
+    private static final int COMMIT     = 2;
+
+    private Disk       disk;
+    private SuperBlock superBlock;
+    private int        blockSize;
+    // Home block numbers that fit in a descriptor block after its
+    // magic, type, sequence number and count
+    private int        perDescriptor;
+    private int        seq;    // sequence number of the next transaction
+    private int        next;   // journal block of the next transaction
+    private BitSet     logged; // home blocks logged since the checkpoint
+
+    /**
+     * Construct a new Journal for the journal blocks of a formatted
+     * file system. Call replay() before using the file system, or
+     * checkpoint() right after formatting it.
+     */
+    public Journal(Disk disk, SuperBlock superBlock) {
+        this.disk       = disk;
+        this.superBlock = superBlock;
+        blockSize       = superBlock.blockSize();
+        perDescriptor   = blockSize / 4 - 4;
+        seq             = 1;
+        next            = 1;
+        logged          = new BitSet();
+    }
+
+    /**
+     * Copy every committed transaction in the journal to its home
+     * blocks, then checkpoint. Blocks that were replayed must be read
+     * again (including the SuperBlock, which holds part of the free
+     * map).
+     *
+     * @return number of transactions replayed
+     */
+    public int replay() {
+        ByteBuffer header = readBlock(0);
+        if(header.getInt() != MAGIC)
+            return 0;
+        seq  = header.getInt();
+        next = header.getInt();
+
+        int replayed = 0, end;
+        while((end = replayTransaction(next)) > 0) {
+            next = end;
+            ++seq;
+            ++replayed;
+        }
+        if(replayed > 0) {
+            // Skip the sequence number of a transaction that may have
+            // been torn, so that it can never be mistaken for a new one
+            ++seq;
+            checkpoint();
+        }
+        return replayed;
+    }
+
+    /**
+     * Commit a transaction: append the blocks to the journal, then
+     * write them to their home blocks through the block cache.
+     *
+     * A transaction too big for the whole journal is written straight
+     * to its home blocks after a checkpoint, without the guarantee
+     * that it is applied all or nothing.
+     *
+     * @param blocks new contents of the metadata blocks, by block
+     *               number (e.g., from Disk.end())
+     */
+    public void commit(SortedMap<Integer, byte[]> blocks) {
+        int count = blocks.size();
+        if(count == 0)
+            return;
+        int descriptors = (count + perDescriptor - 1) / perDescriptor;
+        int records     = descriptors + count + 1;
+        if(records > superBlock.jsize - 1) {
+            checkpoint();
+            for(Map.Entry<Integer, byte[]> e : blocks.entrySet())
+                disk.write(e.getKey(), e.getValue());
+            for(int blockNum : blocks.keySet())
+                disk.flush(blockNum, 1);
+            disk.force();
+            return;
+        }
+        if(next + records > superBlock.jsize)
+            checkpoint();
+
+        // Lay the whole transaction out in one buffer so that it is
+        // appended with a single disk transfer.
+        //
+        ByteBuffer out = ByteBuffer.allocate(records * blockSize);
+        List<byte[]> images = new ArrayList<byte[]>(blocks.values());
+        List<Integer> homes = new ArrayList<Integer>(blocks.keySet());
+        for(int i = 0; i < count; i += perDescriptor) {
+            int n = Math.min(perDescriptor, count - i);
+            out.putInt(MAGIC).putInt(DESCRIPTOR).putInt(seq).putInt(n);
+            for(int j = 0; j < n; ++j)
+                out.putInt(homes.get(i + j));
+            out.position(out.position() + (perDescriptor - n) * 4);
+            for(int j = 0; j < n; ++j)
+                out.put(images.get(i + j));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putInt(MAGIC).putInt(COMMIT).putInt(seq).putInt((int)crc.getValue());
+
+        disk.write(superBlock.jblock0() + next, records, out.array(), 0);
+        disk.force();
+        next += records;
+        ++seq;
+
+        for(Map.Entry<Integer, byte[]> e : blocks.entrySet()) {
+            disk.write(e.getKey(), e.getValue());
+            logged.set(e.getKey());
+        }
+    }
+
+    /**
+     * Write the home blocks of every logged transaction to disk and
+     * empty the journal.
+     */
+    public void checkpoint() {
+        for(int n = logged.nextSetBit(0); n >= 0; ) {
+            int end = logged.nextClearBit(n);
+            disk.flush(n, end - n);
+            n = logged.nextSetBit(end);
+        }
+        logged.clear();
+        disk.force();
+
+        next = 1;
+        ByteBuffer header = ByteBuffer.allocate(blockSize);
+        header.putInt(MAGIC).putInt(seq).putInt(next);
+        disk.write(superBlock.jblock0(), 1, header.array(), 0);
+        disk.force();
+    }
+
+    /**
+     * Replay the transaction starting at journal block at, if it is
+     * complete and has the expected sequence number.
+     *
+     * @return journal block following the transaction, or -1 if there
+     *         is no transaction to replay at that block
+     */
+    private int replayTransaction(int at) {
+        List<Integer> homes  = new ArrayList<Integer>();
+        List<byte[]>  images = new ArrayList<byte[]>();
+        CRC32 crc = new CRC32();
+        while(at < superBlock.jsize) {
+            ByteBuffer record = readBlock(at);
+            if(record.getInt() != MAGIC)
+                return -1;
+            int type = record.getInt();
+            if(record.getInt() != seq)
+                return -1;
+            if(type == COMMIT) {
+                if(record.getInt() != (int)crc.getValue())
+                    return -1;
+                for(int i = 0; i < homes.size(); ++i) {
+                    disk.write(homes.get(i), images.get(i));
+                    logged.set(homes.get(i));
+                }
+                return at + 1;
+            }
+            int n = record.getInt();
+            if(type != DESCRIPTOR || n < 1 || n > perDescriptor ||
+               at + 1 + n > superBlock.jsize)
+                return -1;
+            crc.update(record.array());
+            for(int i = 0; i < n; ++i) {
+                int home = record.getInt();
+                if(home < 0 || home >= superBlock.size)
+                    return -1;
+                byte[] image = readBlock(at + 1 + i).array();
+                crc.update(image);
+                homes.add(home);
+                images.add(image);
+            }
+            at += 1 + n;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a journal block without caching it.
+     *
+     * @param  at block within the journal
+     * @return    the block contents
+     */
+    private ByteBuffer readBlock(int at) {
+        byte[] data = new byte[blockSize];
+        disk.read(superBlock.jblock0() + at, 1, data, 0);
+        return ByteBuffer.wrap(data);
+    }
+}
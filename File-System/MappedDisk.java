@@ -0,0 +1,109 @@
+package fileSystem;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Disk whose blocks are transferred through a memory mapping of the
+ * whole disk file (its capacity, CAPACITY bytes by default) instead of
+ * through read()/write() calls on the file.
+ *
+ * Use it anywhere a Disk is expected, e.g.:
+ *
+ * <pre>
+ * FileSystem fs = new MyFileSystem(new MappedDisk());
+ * </pre>
+ *
+ * Every physical read or write is a single bulk copy between the
+ * mapping and a block buffer, with no system call (or one per CHUNK
+ * bytes crossed, see below). Blocks still pass through the block
+ * cache of the Disk (construct with a cache capacity of 0 to skip it).
+ *
+ * A single mapping can hold at most 2 GB, so the disk file is mapped
+ * in chunks of CHUNK bytes. Mapping extends the file to its full
+ * capacity, but sparsely: only the pages that are written take space.
+ */
+public class MappedDisk extends Disk {
+    public static final long CHUNK = 1L << 30; // bytes per mapping
+    private MappedByteBuffer[] chunks;
+
+    /**
+     * Construct a new memory-mapped disk with the default block
+     * cache capacity.
+     *
+     * Will terminate your program if the disk file cannot be mapped.
+     */
+    public MappedDisk() {
+        this(CACHE_BLOCKS);
+    }
+
+    /**
+     * Construct a new memory-mapped disk.
+     *
+     * @param cacheBlocks number of blocks to cache in memory, or 0 to
+     *                    disable the block cache
+     */
+    public MappedDisk(int cacheBlocks) {
+        this(cacheBlocks, CAPACITY);
+    }
+
+    /**
+     * Construct a new memory-mapped disk holding capacity bytes.
+     *
+     * @param cacheBlocks number of blocks to cache in memory, or 0 to
+     *                    disable the block cache
+     * @param capacity    size of the disk in bytes
+     */
+    public MappedDisk(int cacheBlocks, long capacity) {
+        super(cacheBlocks, capacity);
+        chunks = new MappedByteBuffer[(int)((capacity + CHUNK - 1) / CHUNK)];
+        try {
+            for(int i = 0; i < chunks.length; ++i)
+                chunks[i] = channel().map(FileChannel.MapMode.READ_WRITE, i * CHUNK,
+                                          Math.min(CHUNK, capacity - i * CHUNK));
+        } catch(IOException e) {
+            System.err.println("Unable to map the disk");
+            System.exit(1);
+        }
+    }
+
+    protected void readBlocks(int blocknum, int count, ByteBuffer buffer) {
+        long pos = position(blocknum);
+        long end = position(blocknum + count);
+        while(pos < end) {
+            ByteBuffer view = view(pos, end);
+            pos += view.remaining();
+            buffer.put(view);
+        }
+    }
+
+    protected void writeBlocks(int blocknum, int count, ByteBuffer buffer) {
+        long pos = position(blocknum);
+        long end = position(blocknum + count);
+        while(pos < end) {
+            ByteBuffer view = view(pos, end);
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + view.remaining());
+            pos += view.remaining();
+            view.put(src);
+            buffer.position(src.position());
+        }
+    }
+
+    protected void sync() {
+        for(MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    /**
+     * Get a view of the bytes of the disk file from pos up to end or
+     * the end of the chunk holding pos, whichever comes first.
+     */
+    private ByteBuffer view(long pos, long end) {
+        ByteBuffer view = chunks[(int)(pos / CHUNK)].duplicate();
+        view.position((int)(pos % CHUNK));
+        view.limit((int)Math.min(view.limit(), view.position() + (end - pos)));
+        return view;
+    }
+}
@@ -1,19 +1,88 @@
 package fileSystem;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Unit tests are in {@see TestMyFileSystem}. See MyFileSystem.java.
+ *
+ * A MyFileSystem may be used from several threads. Operations on
+ * different files run in parallel, while each file is guarded by the
+ * ReadWriteLock of its inode: read() and seek() share it, write(),
+ * fsync(), close(), open() and delete() hold it alone. Metadata
+ * write-back (one journal transaction at a time) is serialized. A file
+ * descriptor should be used by one thread at a time.
+ *
+ * Files may also be named by path (see mkdir(), create(String),
+ * open(String), lookup() and unlink()). Directories are files
+ * holding hash tables of names (see {@link Directory}); the inumber
+ * of the root directory is kept in the SuperBlock. Up to
+ * DIRECTORY_HANDLES directories stay open, each on a file descriptor
+ * reserved beyond the maxFiles open files (with one more for making
+ * a directory), so that they never take one from users. The
+ * DentryCache remembers the names looked up most recently. Path
+ * operations are serialized.
  */
 public class MyFileSystem implements FileSystem {
-    public Disk       disk       = new Disk();
-    public FileTable  fileTable  = new FileTable();
+    public Disk       disk;
+    public FileTable  fileTable;
     public SuperBlock superBlock = new SuperBlock();
     public FreeMap    freeMap;
+    public InodeTable inodeTable;
+    public Journal    journal;     // null if the disk has no journal
+    public int blockSize         = Disk.BLOCK_SIZE;
     public int singleBound       = IndirectBlock.COUNT;
     public int doubleBound       = singleBound * IndirectBlock.COUNT;
     public int tripleBound       = doubleBound * IndirectBlock.COUNT;
     public int MaxFileSzie       = 10 + singleBound + doubleBound + tripleBound;
 
+    // Pointers in an IndirectBlock and inodes in an InodeBlock, for
+    // the block size of the file system
+    private int ptrsPerBlock     = IndirectBlock.COUNT;
+    private int inodesPerBlock   = InodeBlock.COUNT;
+
+    // A write that leaves this many data blocks of a file dirty writes
+    // the file back, as if by fsync() without forcing the disk.
+    public static final int WRITEBACK_BLOCKS = 256;
+
+    // Read in place of the blocks of a hole
+    private static final byte[] ZEROS = new byte[Disk.BLOCK_SIZE];
+
+    // Directories kept open (on reserved descriptors), least recently
+    // used first, and names looked up recently
+    public static final int DIRECTORY_HANDLES = 4;
+    private final LinkedHashMap<Integer, Directory> directories =
+        new LinkedHashMap<Integer, Directory>(16, 0.75f, true);
+    public DentryCache dentryCache = new DentryCache(DentryCache.CAPACITY);
+
+    // Held by path operations, which share the open directories
+    private final ReentrantLock namespaceLock = new ReentrantLock();
+
+    // Held while metadata is written back, since the disk stages the
+    // blocks of one journal transaction at a time
+    private final ReentrantLock metadataLock = new ReentrantLock();
+
+    // Runs the prefetches asked for by sequential reads (see
+    // ReadAhead), one at a time, in the background
+    private final ExecutorService prefetcher =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     /**
      * Reading from or writing to a file.
      */
@@ -24,92 +93,226 @@ public class MyFileSystem implements FileSystem {
      * formatDisk on the new FileSystem if necessary.
      */
     public MyFileSystem() throws IOException {
+        this(new Disk());
+    }
+
+    /**
+     * Construct a new FileSystem on the given disk (e.g., one with a
+     * non-default block cache capacity).
+     */
+    public MyFileSystem(Disk disk) throws IOException {
+        this(disk, FileTable.MAX_FILES);
+    }
+
+    /**
+     * Construct a new FileSystem on the given disk that can have up
+     * to maxFiles files open at once.
+     *
+     * @throws IOException if the SuperBlock has a layout this version
+     *                     does not know, or a bad block size
+     */
+    public MyFileSystem(Disk disk, int maxFiles) throws IOException {
+        this.disk = disk;
+        fileTable = new FileTable(maxFiles, DIRECTORY_HANDLES + 1);
         disk.read(0, superBlock);
+        if(superBlock.version != 0 && superBlock.version != SuperBlock.VERSION)
+            throw new IOException("Unknown file system layout version " +
+                                  superBlock.version);
+        if(superBlock.bsize != 0 && ! Disk.isBlockSize(superBlock.bsize))
+            throw new IOException("Bad block size " + superBlock.bsize);
+        if(superBlock.blockSize() != disk.getBlockSize()) {
+            initGeometry();
+            disk.read(0, superBlock);
+        }
+        initGeometry();
+
+        // Bring the metadata up to date with the journal first, in
+        // case we crashed (the SuperBlock holds part of the free map).
+        //
+        initJournal();
+        if(journal != null && journal.replay() > 0)
+            disk.read(0, superBlock);
         initFreeMap();
+        initInodeTable();
     }
     
     public int formatDisk(int size, int isize) throws IOException {
+        return formatDisk(size, isize, 0);
+    }
+
+    /**
+     * Format the disk like formatDisk(size, isize), but also reserve
+     * jsize blocks (which count towards size) for a journal of
+     * metadata changes. See {@link Journal}.
+     *
+     * @param  size  Number of blocks total in the file system
+     * @param  isize Number of InodeBlocks in the file system
+     * @param  jsize Number of journal blocks, 0 for no journal or at
+     *               least 4
+     * @return       0 on success, -1 otherwise
+     */
+    public int formatDisk(int size, int isize, int jsize) throws IOException {
+        return formatDisk(size, isize, jsize, Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Format the disk like formatDisk(size, isize, jsize), with blocks
+     * of blockSize bytes instead of the default Disk.BLOCK_SIZE. The
+     * block size is recorded in the SuperBlock, and every block
+     * structure is sized for it whenever the disk is mounted. The disk
+     * holds the same number of bytes whatever the block size (see
+     * Disk.getCapacity()), so size counts fewer blocks when they are
+     * larger.
+     *
+     * @param  size      Number of blocks total in the file system
+     * @param  isize     Number of InodeBlocks in the file system
+     * @param  jsize     Number of journal blocks, 0 for no journal or
+     *                   at least 4
+     * @param  blockSize Size of a block in bytes, a power of two from
+     *                   Disk.MIN_BLOCK_SIZE to Disk.MAX_BLOCK_SIZE
+     * @return           0 on success, -1 otherwise
+     */
+    public int formatDisk(int size, int isize, int jsize, int blockSize)
+        throws IOException {
+        if(! Disk.isBlockSize(blockSize)) {
+            System.err.println("Block size must be a power of two from " +
+                               Disk.MIN_BLOCK_SIZE + " to " + Disk.MAX_BLOCK_SIZE);
+            return -1;
+        }
+
         // The total size of the file system cannot be larger than the
         // maximum size of the disk.
         //
-        if(size > Disk.NUM_BLOCKS) {
-            System.err.println("Size exceeds disk size of " + Disk.NUM_BLOCKS);
+        int numBlocks = disk.blockCount(blockSize);
+        if(size > numBlocks) {
+            System.err.println("Size exceeds disk size of " + numBlocks);
+            return -1;
+        }
+
+        // The journal needs a header block and room for a
+        // transaction of at least one block.
+        //
+        if(jsize < 0 || (jsize > 0 && jsize < 4)) {
+            System.err.println("Journal must be 0 or at least 4 blocks");
             return -1;
         }
         
         // Calculate the number of blocks needed for the freemap (may
         // be 0 if the entire free map fits within the superblock.
         //
-        int extra = (size - isize - 1) - superBlock.freeMap.length * 8;
-        int msize = (int)Math.max(0, Math.ceil(extra / 8.0 / Disk.BLOCK_SIZE));
+        SuperBlock formatted = new SuperBlock(blockSize);
+        int extra = (size - isize - jsize - 1) - formatted.freeMap.length * 8;
+        int msize = (int)Math.max(0, Math.ceil(extra / 8.0 / blockSize));
         
         // We require that the size of the metadata not exceed the
         // size of the file system.
         //
-        if(size - msize - isize - 1 < 0) {
+        if(size - msize - isize - jsize - 1 < 0) {
             System.err.println("Metadata will not fit in file system");
             return -1;
         }
 
-        // Initialize and write the superblock.
+        // Forget the directories of the old file system.
+        closeDirectories();
+
+        // Initialize and write the superblock, after switching the disk
+        // to the new block size.
+        superBlock       = formatted;
         superBlock.size  = size;
         superBlock.isize = isize;
         superBlock.msize = msize;
+        superBlock.jsize = jsize;
+        superBlock.bsize = blockSize;
+        initGeometry();
         disk.write(0, superBlock);
 
-        // Write empty FreeMapBlocks (if needed) and InodeBlocks, with
-        // FreeMapBlocks immediately following the SuperBlock and
-        // InodeBlocks immediately following the FreeMapBlocks.
+        // Write empty FreeMapBlocks (if needed), journal blocks and
+        // InodeBlocks, with FreeMapBlocks immediately following the
+        // SuperBlock, the journal immediately following the
+        // FreeMapBlocks and InodeBlocks immediately following the
+        // journal. The journal is cleared so that nothing left over
+        // from an earlier file system is replayed.
         //
         if(superBlock.mblock0() > 0)
-            for(int i = superBlock.mblock0(); i < superBlock.iblock0(); ++i)
-                disk.write(i, new FreeMapBlock());
+            for(int i = superBlock.mblock0(); i < superBlock.jblock0(); ++i)
+                disk.write(i, new FreeMapBlock(blockSize));
+        if(jsize > 0)
+            disk.write(superBlock.jblock0(), jsize,
+                       new byte[jsize * blockSize], 0);
         for(int i = superBlock.iblock0(); i < superBlock.dblock0(); ++i)
-            disk.write(i, new InodeBlock());
+            disk.write(i, new InodeBlock(blockSize));
 
-        // Set up the free map again (because we changed file system
-        // metadata since the constructor was called).
+        // Write the new metadata to disk, then set up the journal,
+        // free map and inode table again (because we changed file
+        // system metadata since the constructor was called).
         //
+        disk.flush();
+        initJournal();
+        if(journal != null)
+            journal.checkpoint();
         initFreeMap();
+        initInodeTable();
 
         return 0;
     }
     
     public int shutdown() throws IOException {
-        // Save any free map blocks that haven't been written
-        freeMap.save();
+        // Let the prefetches already asked for finish
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        // Close any open files
-        for(int fd = 0; fd < FileTable.MAX_FILES; ++fd)
+        // Close any open files (directories too) and write back their
+        // inodes
+        closeDirectories();
+        for(int fd = 0; fd < fileTable.size(); ++fd)
             if(fileTable.isValid(fd))
                 close(fd);
 
+        // Save any free map blocks and inodes that haven't been
+        // written, and empty the journal
+        metadataLock.lock();
+        try {
+            beginMetadata();
+            freeMap.save();
+            inodeTable.save();
+            commitMetadata();
+            if(journal != null)
+                journal.checkpoint();
+        } finally {
+            metadataLock.unlock();
+        }
+
         // Stop the disk and end
         disk.stop(false);
         return 0;
     }
     
     public int create() throws IOException {
+        return create(false);
+    }
+
+    /**
+     * Create a new empty file, like create(), open on one of the
+     * descriptors reserved for directories if reserved is true.
+     */
+    private int create(boolean reserved) throws IOException {
         // Try to get a free file descriptor.
         //
-        int fd = fileTable.allocate();
+        int fd = reserved ? fileTable.allocateReserved() : fileTable.allocate();
         if(fd < 0)
             return -1;
 
-        // Try to find an inode for the new file.
+        // Try to find an inode for the new file. The new inode is
+        // written back with the rest of its InodeBlock on close.
         //
-        InodeBlock block = new InodeBlock();
-        int inumber = 1; // inumbers start at 1, not 0
-        for(int n = superBlock.iblock0(); n < superBlock.dblock0(); ++n) {
-            disk.read(n, block);
-            for(int o = 0; o < InodeBlock.COUNT; ++o, ++inumber) {
-                if(block.inodes[o].flags == 0) {
-                    block.inodes[o].allocate();
-                    fileTable.add(block.inodes[o], inumber, fd);
-                    disk.write(n, block);
-                    return fd;
-                }
-            }
+        int inumber = inodeTable.allocate();
+        if(inumber != 0) {
+            fileTable.add(inodeTable.get(inumber), inumber, fd);
+            return fd;
         }
 
         // Could not find a free inode, so release our file
@@ -121,29 +324,42 @@ public class MyFileSystem implements FileSystem {
     }
     
     public int open(int inumber) throws IOException {
+        return open(inumber, false);
+    }
+
+    /**
+     * Open a file, like open(int), on one of the descriptors reserved
+     * for directories if reserved is true.
+     */
+    private int open(int inumber, boolean reserved) throws IOException {
         if(! inumberIsValid(inumber))
             return -1;
         
         // Try to get a free file descriptor.
         //
-        int fd = fileTable.allocate();
+        int fd = reserved ? fileTable.allocateReserved() : fileTable.allocate();
         if(fd < 0)
             return -1;
 
-        // Get the requested inode from disk.
+        // Get the requested inode from the inode table.
         //
-        InodeBlock inodeBlock = new InodeBlock();
-        disk.read(inumberToBlockNum(inumber), inodeBlock);
-        Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
+        Inode inode = inodeTable.get(inumber);
 
         // If the inode is allocated, associate the inode with the
         // file descriptor, and then return the fd. Otherwise, there
         // was an error so we should release the file descriptor and
-        // return -1.
+        // return -1. The lock keeps delete() from freeing the inode
+        // in between.
         //
-        if(inode.flags != 0) {
-            fileTable.add(inode, inumber, fd);
-            return fd;
+        Lock lock = inodeTable.lock(inumber).writeLock();
+        lock.lock();
+        try {
+            if(inode.flags != 0) {
+                fileTable.add(inode, inumber, fd);
+                return fd;
+            }
+        } finally {
+            lock.unlock();
         }
         fileTable.free(fd);
         System.err.println("File " + inumber + " does not exist");
@@ -155,55 +371,91 @@ public class MyFileSystem implements FileSystem {
     }
     
     public int read(int fd, byte[] buffer) throws IOException {
+        return read(fd, buffer, 0, buffer.length);
+    }
+
+    public int read(int fd, byte[] buffer, int off, int len) throws IOException {
+        if(! rangeIsValid(buffer, off, len))
+            return -1;
+        return read(fd, ByteBuffer.wrap(buffer, off, len));
+    }
+
+    public int read(int fd, ByteBuffer buffer) throws IOException {
         if(! fileDescriptorIsValid(fd))
             return -1;
 
-        DirectBlock block;
-        int len, off = 0, limit = getReadLimit(fd, buffer.length);
-        for(off = 0; off < limit; off += len) {
-            block = getDirectBlock(fd, MODE.r);
-            len = block.copyTo(buffer, off); // may copy some garbage in
-            seek(fd, len, Whence.SEEK_CUR);
-        }
-        return limit;
+        long seekPtr = fileTable.getSeekPointer(fd);
+        readAhead(fd, seekPtr, buffer.remaining());
+        int len = readAt(fd, buffer, seekPtr);
+        fileTable.setSeekPointer(fd, seekPtr + len);
+        return len;
     }
     
     public int write(int fd, byte[] buffer) throws IOException {
+        return write(fd, buffer, 0, buffer.length);
+    }
+
+    public int write(int fd, byte[] buffer, int off, int len) throws IOException {
+        if(! rangeIsValid(buffer, off, len))
+            return -1;
+        return write(fd, ByteBuffer.wrap(buffer, off, len));
+    }
+
+    public int write(int fd, ByteBuffer buffer) throws IOException {
         if(! fileDescriptorIsValid(fd))
             return -1;
 
-        DirectBlock block;
-        int len, off = 0;
-        for(off = 0; off < buffer.length; off += len) {
-            if((block = getDirectBlock(fd, MODE.w)) == null) {
-                System.err.println("File system is full");
-                return -1;
-            }
-            len = block.copyFrom(buffer, off);
-            seek(fd, len, Whence.SEEK_CUR);
-            updateFileSize(fd);
-            block.save();
-        }
-        return buffer.length;
+        long seekPtr = fileTable.getSeekPointer(fd);
+        int want = buffer.remaining();
+        int len = writeAt(fd, buffer, seekPtr);
+        fileTable.setSeekPointer(fd, seekPtr + len);
+        return len < want ? -1 : len;
+    }
+
+    public int pread(int fd, byte[] buffer, int off, int len, long position)
+        throws IOException {
+        if(! fileDescriptorIsValid(fd) || ! rangeIsValid(buffer, off, len) ||
+           ! positionIsValid(position))
+            return -1;
+        return readAt(fd, ByteBuffer.wrap(buffer, off, len), position);
+    }
+
+    public int pwrite(int fd, byte[] buffer, int off, int len, long position)
+        throws IOException {
+        if(! fileDescriptorIsValid(fd) || ! rangeIsValid(buffer, off, len) ||
+           ! positionIsValid(position))
+            return -1;
+        return writeAt(fd, ByteBuffer.wrap(buffer, off, len), position) < len ? -1 : len;
     }
     
-    public int seek(int fd, int offset, Whence whence) throws IOException {
+    public long seek(int fd, long offset, Whence whence) throws IOException {
         if(! fileDescriptorIsValid(fd))
             return -1;
         
         Inode inode = fileTable.getInode(fd);
-        int ptr;
+        long ptr;
         
         switch(whence) {
             case SEEK_SET:
                 ptr = offset;
                 break;
             case SEEK_END:
-                ptr = offset + inode.size;
+                Lock lock = inodeTable.lock(fileTable.getInumber(fd)).readLock();
+                lock.lock();
+                try {
+                    ptr = offset + inode.size;
+                } finally {
+                    lock.unlock();
+                }
                 break;
             case SEEK_CUR:
                 ptr = offset + fileTable.getSeekPointer(fd);
                 break;
+            case SEEK_DATA:
+            case SEEK_HOLE:
+                if((ptr = seekData(fd, offset, whence == Whence.SEEK_DATA)) < 0)
+                    return -1;
+                break;
             default:
                 return -1;
         }
@@ -215,53 +467,358 @@ public class MyFileSystem implements FileSystem {
         return ptr;
     }
     
-    public int close(int fd) throws IOException {
+    public int fsync(int fd) throws IOException {
         if(! fileDescriptorIsValid(fd))
             return -1;
+        Lock lock = inodeTable.lock(fileTable.getInumber(fd)).writeLock();
+        lock.lock();
+        try {
+            writeBack(fd);
+        } finally {
+            lock.unlock();
+        }
+        disk.force();
+        return 0;
+    }
 
-        // Read the InodeBlock in, modify it, and write it back out.
-        //
-        InodeBlock inodeBlock = new InodeBlock();
-        int inumber = fileTable.getInumber(fd);
-        disk.read(inumberToBlockNum(inumber), inodeBlock);
-        inodeBlock.inodes[inumberToOffset(inumber)] = fileTable.getInode(fd);
-        disk.write(inumberToBlockNum(inumber), inodeBlock);
+    public int close(int fd) throws IOException {
+        if(! fileDescriptorIsValid(fd))
+            return -1;
 
-        // Free the file descriptor and return successfully.
+        // Write back the blocks changed through fd and the inode
+        // (which the open file shares with the inode table), then
+        // free the file descriptor and return successfully.
         //
-        fileTable.free(fd);
+        Lock lock = inodeTable.lock(fileTable.getInumber(fd)).writeLock();
+        lock.lock();
+        try {
+            writeBack(fd);
+            fileTable.free(fd);
+        } finally {
+            lock.unlock();
+        }
         return 0;
     }
     
     public int delete(int inumber) throws IOException {
-        // Disallow deleting of open files.
-        //
-        int fd;
-        if((fd = fileTable.getFdFromInumber(inumber)) != -1) {
-            System.err.println("Cannot delete open file (fd = " + fd + ")");
+        return delete(inumber, false);
+    }
+
+    /**
+     * Delete a file, like delete(int). Only path operations may delete
+     * a directory or a file that has a name, once no directory holds
+     * it (namespaceLock must be held then).
+     *
+     * @param  unlinked true if the file may be a directory or have a
+     *                  name
+     * @return          0 on success, -1 on error
+     */
+    private int delete(int inumber, boolean unlinked) throws IOException {
+        if(! inumberIsValid(inumber))
             return -1;
-        }
 
-        // Get inode for this file.
+        // Disallow deleting of open files. The lock keeps open()
+        // from opening the file while we delete it.
         //
-        InodeBlock inodeBlock = new InodeBlock();
-        disk.read(inumberToBlockNum(inumber), inodeBlock);
-        Inode inode = inodeBlock.inodes[inumberToOffset(inumber)];
+        Lock lock = inodeTable.lock(inumber).writeLock();
+        lock.lock();
+        metadataLock.lock();
+        try {
+            int fd;
+            if((fd = fileTable.getFdFromInumber(inumber)) != -1) {
+                System.err.println("Cannot delete open file (fd = " + fd + ")");
+                return -1;
+            }
+            if(! unlinked && ! isAnonymous(inumber))
+                return -1;
+
+            // Free the blocks of this file.
+            //
+            beginMetadata();
+            freeBlocks(inodeTable.get(inumber));
+            freeMap.save();
 
-        // Free all direct blocks in the free map. No need to clear
-        // the inode pointers, they are cleared when allocating a new
-        // file.
+            // Mark the inode as free and write it to disk.
+            //
+            inodeTable.free(inumber);
+            inodeTable.save();
+            commitMetadata();
+            flushFreed();
+            return 0;
+        } finally {
+            metadataLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    public int[] createBatch(int n) throws IOException {
+        if(n < 0) {
+            System.err.println("Cannot create " + n + " files");
+            return null;
+        }
+
+        // Allocate every inode first, then write back the InodeBlocks
+        // holding them in one go.
         //
-        for(int i = 0; i < inode.ptr.length; ++i)
-            if(inode.ptr[i] != 0)
-                freeMap.clear(inode.ptr[i]);
-        freeMap.save();
+        int[] inumbers = inodeTable.allocate(n);
+        if(inumbers == null) {
+            System.err.println("Out of files");
+            return null;
+        }
+        metadataLock.lock();
+        try {
+            beginMetadata();
+            inodeTable.save();
+            commitMetadata();
+            if(journal == null)
+                disk.flush(superBlock.iblock0(), superBlock.isize);
+        } finally {
+            metadataLock.unlock();
+        }
+        return inumbers;
+    }
+
+    public int deleteBatch(int[] inumbers) throws IOException {
+        int[] sorted = inumbers.clone();
+        Arrays.sort(sorted);
+        for(int i = 0; i < sorted.length; ++i) {
+            if(! inumberIsValid(sorted[i]))
+                return -1;
+            if(i > 0 && sorted[i] == sorted[i - 1]) {
+                System.err.println("File " + sorted[i] + " is listed twice");
+                return -1;
+            }
+        }
 
-        // Mark the inode as free and write it to disk.
+        // Lock the files in inumber order, so that two batches cannot
+        // deadlock, and check them all before freeing anything.
         //
-        inode.flags = 0;
-        disk.write(inumberToBlockNum(inumber), inodeBlock);
-        return 0;
+        Lock[] locks = new Lock[sorted.length];
+        int locked = 0;
+        try {
+            for(; locked < sorted.length; ++locked) {
+                locks[locked] = inodeTable.lock(sorted[locked]).writeLock();
+                locks[locked].lock();
+            }
+            metadataLock.lock();
+            try {
+                for(int inumber : sorted) {
+                    int fd;
+                    if((fd = fileTable.getFdFromInumber(inumber)) != -1) {
+                        System.err.println("Cannot delete open file (fd = " + fd + ")");
+                        return -1;
+                    }
+                    if(inodeTable.get(inumber).flags == 0) {
+                        System.err.println("File " + inumber + " does not exist");
+                        return -1;
+                    }
+                    if(! isAnonymous(inumber))
+                        return -1;
+                }
+
+                // Free every file, then save the free map and the
+                // InodeBlocks once for all of them.
+                //
+                beginMetadata();
+                for(int inumber : sorted) {
+                    freeBlocks(inodeTable.get(inumber));
+                    inodeTable.free(inumber);
+                }
+                freeMap.save();
+                inodeTable.save();
+                commitMetadata();
+                flushFreed();
+                return 0;
+            } finally {
+                metadataLock.unlock();
+            }
+        } finally {
+            for(int i = 0; i < locked; ++i)
+                locks[i].unlock();
+        }
+    }
+
+    public int mkdir(String path) throws IOException {
+        String[] names = splitPath(path);
+        if(names == null || names.length == 0) {
+            System.err.println("Cannot make directory " + path);
+            return -1;
+        }
+        namespaceLock.lock();
+        try {
+            Directory parent = getParent(names);
+            if(parent == null || ! isFree(parent, names))
+                return -1;
+            int inumber = makeDirectory();
+            if(inumber < 0)
+                return -1;
+            if(link(parent, names, inumber) < 0) {
+                delete(inumber, true);
+                return -1;
+            }
+            return inumber;
+        } finally {
+            namespaceLock.unlock();
+        }
+    }
+
+    public int create(String path) throws IOException {
+        String[] names = splitPath(path);
+        if(names == null || names.length == 0) {
+            System.err.println("Cannot create " + path);
+            return -1;
+        }
+        namespaceLock.lock();
+        try {
+            Directory parent = getParent(names);
+            if(parent == null || ! isFree(parent, names))
+                return -1;
+            int fd = create();
+            if(fd < 0)
+                return -1;
+            int inumber = fileTable.getInumber(fd);
+            if(link(parent, names, inumber) < 0) {
+                close(fd);
+                delete(inumber, true);
+                return -1;
+            }
+            return fd;
+        } finally {
+            namespaceLock.unlock();
+        }
+    }
+
+    public int open(String path) throws IOException {
+        int inumber = lookup(path);
+        if(inumber < 0)
+            return -1;
+        if((inodeTable.get(inumber).flags & Inode.DIRECTORY) != 0) {
+            System.err.println(path + " is a directory");
+            return -1;
+        }
+        return open(inumber);
+    }
+
+    public int lookup(String path) throws IOException {
+        String[] names = splitPath(path);
+        if(names == null)
+            return -1;
+        namespaceLock.lock();
+        try {
+            return resolve(names, names.length);
+        } finally {
+            namespaceLock.unlock();
+        }
+    }
+
+    public int unlink(String path) throws IOException {
+        String[] names = splitPath(path);
+        if(names == null || names.length == 0) {
+            System.err.println("Cannot unlink " + path);
+            return -1;
+        }
+        namespaceLock.lock();
+        try {
+            Directory parent = getParent(names);
+            if(parent == null)
+                return -1;
+            String name = names[names.length - 1];
+            int inumber = lookupName(parent, name);
+            if(inumber <= 0) {
+                System.err.println("No such file " + path);
+                return -1;
+            }
+
+            // Only empty directories and closed files go; a directory
+            // is closed before it is deleted.
+            //
+            if((inodeTable.get(inumber).flags & Inode.DIRECTORY) != 0) {
+                Directory dir = getDirectory(inumber);
+                if(dir == null)
+                    return -1;
+                if(dir.size() > 0) {
+                    System.err.println("Directory " + path + " is not empty");
+                    return -1;
+                }
+                closeDirectory(inumber);
+            }
+            int fd;
+            if((fd = fileTable.getFdFromInumber(inumber)) != -1) {
+                System.err.println("Cannot delete open file (fd = " + fd + ")");
+                return -1;
+            }
+            if(parent.remove(name.getBytes(StandardCharsets.UTF_8)) < 0)
+                return -1;
+            dentryCache.remove(fileTable.getInumber(parent.getFd()), name);
+            return delete(inumber, true);
+        } finally {
+            namespaceLock.unlock();
+        }
+    }
+
+    /**
+     * Size the block structures for the block size recorded in the
+     * SuperBlock, and switch the disk to it. Should be called from
+     * the constructor and from formatDisk.
+     *
+     * Logical block numbers are ints and sizes are limited to
+     * Inode.MAX_SIZE, so a file never has more blocks than either
+     * allows, however many the pointers could reach.
+     */
+    private void initGeometry() {
+        blockSize      = superBlock.blockSize();
+        ptrsPerBlock   = IndirectBlock.count(blockSize);
+        inodesPerBlock = InodeBlock.count(blockSize);
+        long single    = ptrsPerBlock;
+        long blocks    = Math.min(10 + single + single * single + single * single * single,
+                                  Math.min(Integer.MAX_VALUE - 1,
+                                           Inode.MAX_SIZE / blockSize));
+        singleBound    = ptrsPerBlock;
+        doubleBound    = (int)Math.min(single * single, Integer.MAX_VALUE);
+        tripleBound    = (int)Math.min(single * single * single, Integer.MAX_VALUE);
+        MaxFileSzie    = (int)blocks;
+        disk.setGeometry(blockSize);
+    }
+
+    /**
+     * Initialize the journal instance, if the disk has a journal.
+     * Should be called from the constructor and from formatDisk.
+     */
+    private void initJournal() {
+        journal = superBlock.jsize > 0 ? new Journal(disk, superBlock) : null;
+    }
+
+    /**
+     * Start collecting metadata writes into a journal transaction, if
+     * the disk has a journal.
+     */
+    private void beginMetadata() {
+        if(journal != null)
+            disk.begin();
+    }
+
+    /**
+     * Commit the metadata written since beginMetadata() to the
+     * journal, if the disk has a journal.
+     */
+    private void commitMetadata() {
+        if(journal != null)
+            journal.commit(disk.end());
+    }
+
+    /**
+     * Without a journal, write the InodeBlocks to the disk file, then
+     * the free map, after files were deleted. Otherwise a later
+     * writeBack() of a file that reused their blocks would write the
+     * free map (and its own inode) while the freed inodes are still
+     * dirty in the cache, and a crash would leave them pointing to
+     * blocks another file owns. metadataLock must be held.
+     */
+    private void flushFreed() {
+        if(journal != null)
+            return;
+        disk.flush(superBlock.iblock0(), superBlock.isize);
+        disk.flush(0, superBlock.jblock0());
     }
 
     /**
@@ -272,6 +829,14 @@ public class MyFileSystem implements FileSystem {
         freeMap = new FreeMap(disk, superBlock);
     }
 
+    /**
+     * Initialize the inodeTable instance. Should be called at the end
+     * of the constructor and from formatDisk.
+     */
+    private void initInodeTable() {
+        inodeTable = new InodeTable(disk, superBlock);
+    }
+
     /**
      * Ensure that the fd is within the valid range and refers to an
      * open file. Prints an error message if it is invalid.
@@ -280,7 +845,7 @@ public class MyFileSystem implements FileSystem {
      */
     private boolean fileDescriptorIsValid(int fd) {
         if(( fd < 0                         ||
-             fd >= FileTable.MAX_FILES      ||
+             fd >= fileTable.size()         ||
              fileTable.getInode(fd) == null )) {
             System.err.println("File descriptor " + fd + " is invalid");
             return false;
@@ -295,7 +860,7 @@ public class MyFileSystem implements FileSystem {
      * @return boolean true if inumber is valid, false otherwise
      */
     private boolean inumberIsValid(int inumber) {
-        if(inumber <= 0 || inumber >= superBlock.isize * InodeBlock.COUNT) {
+        if(inumber <= 0 || inumber >= superBlock.isize * inodesPerBlock) {
             System.err.println("inumber " + inumber + " is invalid");
             return false;
         }
@@ -303,10 +868,293 @@ public class MyFileSystem implements FileSystem {
     }
 
     /**
-     * Get a DirectBlock object representing the direct block given
-     * the current seek position in the open file identified by fd. A
-     * DirectBlock references the direct block and offset within that
-     * block containing the current seek position.
+     * Ensure that buffer holds len bytes from off. Prints an error
+     * message if not.
+     *
+     * @return boolean true if the range is valid, false otherwise
+     */
+    private boolean rangeIsValid(byte[] buffer, int off, int len) {
+        if(off < 0 || len < 0 || off > buffer.length - len) {
+            System.err.println("Buffer range " + off + "+" + len + " is invalid");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ensure that a position in a file is not negative. Prints an
+     * error message if it is.
+     *
+     * @return boolean true if position is valid, false otherwise
+     */
+    private boolean positionIsValid(long position) {
+        if(position < 0) {
+            System.err.println("Cannot access offset < 0");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read up to buf.remaining() bytes at position in the open file fd
+     * into buf, advancing its position, without using or moving the
+     * seek pointer. Several threads may read through the same fd at
+     * once.
+     *
+     * @return number of bytes read (0 at or past the end of the file)
+     */
+    private int readAt(int fd, ByteBuffer buf, long position) {
+        Lock lock = inodeTable.lock(fileTable.getInumber(fd)).readLock();
+        lock.lock();
+        try {
+            int limit = getReadLimit(fd, position, buf.remaining());
+            Inode inode = fileTable.getInode(fd);
+            if(inode.isInline()) {
+                inode.readInline((int)position, buf, limit);
+                return limit;
+            }
+            for(int done = 0, n; done < limit; done += n)
+                if((n = readExtent(fd, buf, limit - done, position + done)) == 0)
+                    n = readPart(fd, buf, limit - done, position + done);
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write buf.remaining() bytes from buf to position in the open
+     * file fd, advancing the position of buf, without using or moving
+     * the seek pointer, growing the file if needed.
+     *
+     * @return number of bytes written, less than asked for (after
+     *         printing an error message) if the file system is full
+     */
+    private int writeAt(int fd, ByteBuffer buf, long position) {
+        Lock lock = inodeTable.lock(fileTable.getInumber(fd)).writeLock();
+        lock.lock();
+        try {
+            DirectBlock block;
+            int done, n, len = buf.remaining();
+            if((n = writeInline(fd, buf, position)) != 0)
+                return Math.max(n, 0);
+            preallocate(fd, buf, position);
+            for(done = 0; done < len; done += n) {
+                if((n = skipZeros(fd, buf, len - done, position + done)) > 0 ||
+                   (n = writeExtent(fd, buf, len - done, position + done)) > 0)
+                    continue;
+                if(n < 0 ||
+                   (block = getDirectBlock(fd, position + done, MODE.w)) == null) {
+                    System.err.println("File system is full");
+                    break;
+                }
+                n = block.copyFrom(buf, len - done);
+                block.save();
+            }
+            releasePrealloc(fd);
+            if(done > 0)
+                updateFileSize(fd, position + done);
+            if(fileTable.getDirtyBlocks(fd).cardinality() >= WRITEBACK_BLOCKS)
+                writeBack(fd);
+            return done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write buf inline in the inode of fd, if the file is inline or
+     * still empty and the write ends within Inode.INLINE_SIZE bytes.
+     * If it does not fit, moves the inline data (if any) out to a data
+     * block, so that the write can go to data blocks. Prints an error
+     * message if the file system is full.
+     *
+     * @return number of bytes written inline, 0 if none were, -1 if
+     *         the inline data could not be moved
+     */
+    private int writeInline(int fd, ByteBuffer buf, long position) {
+        Inode inode = fileTable.getInode(fd);
+        int len = buf.remaining();
+        if(len == 0 || (! inode.isInline() && (inode.size > 0 || ! isEmpty(inode))))
+            return 0;
+        if(position + len <= Inode.INLINE_SIZE) {
+            inode.flags |= Inode.INLINE;
+            inode.writeInline((int)position, buf, len);
+            updateFileSize(fd, position + len);
+            return len;
+        }
+        if(inode.isInline() && moveInline(fd) < 0) {
+            System.err.println("File system is full");
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Move the inline data of fd to a new first data block, making it
+     * an ordinary file.
+     *
+     * @return 0 on success, -1 if the file system is full (the data
+     *         is left inline)
+     */
+    private int moveInline(int fd) {
+        Inode inode = fileTable.getInode(fd);
+        int[] data = inode.ptr.clone();
+        ByteBuffer bytes = ByteBuffer.allocate((int)inode.size);
+        inode.readInline(0, bytes, bytes.capacity());
+        bytes.flip();
+        Arrays.fill(inode.ptr, 0);
+        inode.flags &= ~Inode.INLINE;
+        if(! bytes.hasRemaining())
+            return 0;
+        DirectBlock block = getDirectBlock(fd, 0, MODE.w);
+        if(block == null) {
+            System.arraycopy(data, 0, inode.ptr, 0, data.length);
+            inode.flags |= Inode.INLINE;
+            return -1;
+        }
+        block.copyFrom(bytes, bytes.remaining());
+        block.save();
+        return 0;
+    }
+
+    /**
+     * @return true if an inode points to no blocks
+     */
+    private static boolean isEmpty(Inode inode) {
+        for(int ptr : inode.ptr)
+            if(ptr != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Tell the read-ahead state of fd about a read of len bytes at
+     * position, and prefetch the blocks it asks for: right away if the
+     * read needs some of them, otherwise in the background.
+     */
+    private void readAhead(final int fd, long position, int len) {
+        long size = fileTable.getInode(fd).size;
+        if(len == 0 || position >= size || fileTable.getInode(fd).isInline())
+            return;
+        ReadAhead state = fileTable.getReadAhead(fd);
+        final int count = state.access(position, len, blockOf(size - 1), blockSize);
+        final int first = state.getStart();
+        final int inumber = fileTable.getInumber(fd);
+        if(count == 0)
+            return;
+        if(first <= blockOf(position + len - 1)) {
+            prefetch(fd, inumber, first, count, false);
+            return;
+        }
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                prefetch(fd, inumber, first, count, true);
+            }
+        });
+    }
+
+    /**
+     * Bring count logical blocks of file inumber, open as fd, starting
+     * at first, into the block cache, with one disk transfer per run
+     * of blocks that are contiguous on disk. Mapping the blocks reads
+     * in the indirect blocks that point to them too.
+     *
+     * Holds the lock of the inode for reading, so the blocks cannot be
+     * written or freed while they are read. Does nothing if fd has
+     * been closed by then. In the background, skips the blocks that
+     * the reader has already got past.
+     */
+    private void prefetch(int fd, int inumber, int first, int count,
+                          boolean background) {
+        Lock lock = inodeTable.lock(inumber).readLock();
+        lock.lock();
+        try {
+            if(fileTable.getInumber(fd) != inumber ||
+               fileTable.getInode(fd).isInline())
+                return;
+            int from = first;
+            if(background)
+                from = Math.max(first,
+                    blockOf(fileTable.getReadAhead(fd).getExpected()));
+            int start = 0, n = 0;
+            for(int b = from; b < first + count; ++b) {
+                int ptr = getBlockNum(fd, b, MODE.r);
+                if(n > 0 && ptr == start + n) {
+                    ++n;
+                    continue;
+                }
+                if(n > 0)
+                    disk.prefetch(start, n);
+                start = ptr;
+                n     = ptr > 0 ? 1 : 0;
+            }
+            if(n > 0)
+                disk.prefetch(start, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find the first byte at or after offset in fd that is in a block
+     * holding data (data true), or in a hole (data false), for
+     * SEEK_DATA and SEEK_HOLE. The end of the file counts as a hole. A
+     * missing indirect block is skipped as one hole, without looking
+     * at its pointers. Prints an error message if there is none.
+     *
+     * @return the offset found, -1 if offset is not before the end of
+     *         the file, or if data is asked for and there is none
+     *         after offset
+     */
+    private long seekData(int fd, long offset, boolean data) {
+        Lock lock = inodeTable.lock(fileTable.getInumber(fd)).readLock();
+        lock.lock();
+        try {
+            long size = fileTable.getInode(fd).size;
+            if(offset < 0 || offset >= size) {
+                System.err.println("Offset " + offset + " is not in the file");
+                return -1;
+            }
+            if(fileTable.getInode(fd).isInline())
+                return data ? offset : size;
+            int last = blockOf(size - 1);
+            for(int b = blockOf(offset); b <= last; ) {
+                boolean found;
+                int next = b + 1;
+                if(b >= 10 && b < MaxFileSzie && getLeaf(fd, b, MODE.r) == null) {
+                    found = ! data;
+                    next  = b + ptrsPerBlock - (b - 10) % ptrsPerBlock;
+                } else {
+                    found = (getBlockNum(fd, b, MODE.r) > 0) == data;
+                }
+                if(found)
+                    return Math.max(offset, (long)b * blockSize);
+                b = next;
+            }
+            if(! data)
+                return size;
+            System.err.println("No data after offset " + offset);
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the logical block holding a position in a file. Positions
+     * past the last logical block an int can number map to
+     * Integer.MAX_VALUE, which is beyond MaxFileSzie.
+     */
+    private int blockOf(long position) {
+        return (int)Math.min(position / blockSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a DirectBlock object representing the direct block given a
+     * position in the open file identified by fd. A DirectBlock
+     * references the direct block and offset within that block
+     * containing the position.
      *
      * If the current seek position is within a hole or beyond the end
      * of a file, then if create is true then a block will be
@@ -316,136 +1164,769 @@ public class MyFileSystem implements FileSystem {
      * will be returned.
      *
      * @param   fd          valid file descriptor of an open file
+     * @param   position    offset in the file
      * @param   mode        MODE.w if holes should be filled, MODE.r
      *                      otherwise (holes will be read as blocks
      *                      of all zeros)
      * @returns DirectBlock block and offset in that block where the
-     *                      seek position of fd can be found
+     *                      position can be found
      */
-    private DirectBlock getDirectBlock(int fd, MODE mode) {//FIXME!!!
-    	    Inode inode   = fileTable.getInode(fd);
-        int seekPtr   = fileTable.getSeekPointer(fd);
-        int blockNum  = seekPtr / Disk.BLOCK_SIZE;
-        int blockOff  = seekPtr % Disk.BLOCK_SIZE;
-        
-        if(blockNum > 9) { //here blockNum is pointer index, not the real blockNum of the data block
-            if (blockNum < MaxFileSzie) {
-            	    if (blockNum < 10 + singleBound) 
-            	    	    return fromSingleIndirect(blockNum, inode, blockOff, mode);
-            	    if (blockNum < 10 + singleBound + doubleBound) 
-            	    	    return fromDoubleIndirect(blockNum, inode, blockOff, mode);
-            	    return fromTripleIndirect(blockNum, inode, blockOff, mode);
-            }
-            //if file size beyond max capacity, report error
-            else {
-            	    System.err.println("Large files unsupported");
-                System.exit(1);
-            }
-        }
-        boolean fresh = inode.ptr[blockNum] == 0;
+    private DirectBlock getDirectBlock(int fd, long position, MODE mode) {
+        int blockNum  = blockOf(position);
+        int blockOff  = (int)(position % blockSize);
 
         // The blockNum is a logical block number referring to a
-        // pointer in the inode. ptr[blockNum] refers to the real blockNum of data block
-
+        // pointer in the inode or in one of its indirect blocks;
+        // getBlockNum finds the real blockNum of the data block.
+        //
+        // The DirectBlock of fd is reused, so this allocates nothing;
+        // a hole is a fresh block of zeros that is never read or
+        // saved.
+        //
+        DirectBlock block = fileTable.getDirectBlock(fd);
+        int ptr = getBlockNum(fd, blockNum, MODE.r);
+        if(ptr < 0) {
+            System.err.println("Large files unsupported");
+            return mode == MODE.r ? block.set(null, 0, blockOff, true) : null;
+        }
+        boolean fresh = ptr == 0;
         if(fresh)
             if(mode == MODE.r)
-                return DirectBlock.hole;
-            else if((inode.ptr[blockNum] = freeMap.find()) == 0)
+                return block.set(null, 0, blockOff, true);
+            else if((ptr = getBlockNum(fd, blockNum, MODE.w)) == 0)
                 return null;
-        return new DirectBlock(disk, inode.ptr[blockNum], blockOff, fresh);
+        if(mode == MODE.w)
+            fileTable.getDirtyBlocks(fd).set(ptr);
+        return block.set(disk, ptr, blockOff, fresh);
+    }
+
+    /**
+     * Find the data block holding logical block blockNum of a file.
+     *
+     * Blocks past the direct pointers are mapped through a leaf
+     * indirect block: the single indirect block, or the one reached
+     * from the double or triple indirect block. The leaf used last is
+     * remembered in the file table, so that mapping the next block of
+     * a sequential read or write costs one array lookup.
+     *
+     * @param   fd       valid file descriptor of an open file
+     * @param   blockNum logical block number within the file
+     * @param   mode     MODE.w if holes should be filled, MODE.r
+     *                   otherwise
+     * @returns int      block number of the data block, 0 for a hole
+     *                   (MODE.r) or if the file system is full
+     *                   (MODE.w), -1 if blockNum is beyond the maximum
+     *                   file size
+     */
+    private int getBlockNum(int fd, int blockNum, MODE mode) {
+        Inode inode = fileTable.getInode(fd);
+        if(blockNum < 10) {
+            if(inode.ptr[blockNum] == 0 && mode == MODE.w)
+                inode.ptr[blockNum] = allocateDataBlock(fd);
+            return inode.ptr[blockNum];
+        }
+        if(blockNum >= MaxFileSzie)
+            return -1;
 
+        IndirectBlock leaf = getLeaf(fd, blockNum, mode);
+        if(leaf == null)
+            return 0;
+        int i = (blockNum - 10) % ptrsPerBlock;
+        if(leaf.ptr[i] == 0 && mode == MODE.w) {
+            //no place for direct block
+            if((leaf.ptr[i] = allocateDataBlock(fd)) == 0)
+                return 0;
+            fileTable.getDirtyIndirectBlocks(fd).set(fileTable.getLeafNum(fd));
+        }
+        return leaf.ptr[i];
     }
-    
-    public DirectBlock fromSingleIndirect(int blockNum, Inode inode, int blockOff, MODE mode) {
-    	    IndirectBlock singleIndirect = new IndirectBlock();
-    	    
-    	    //check if the 11th position of inode already has a pointer
-    	    if (inode.ptr[10] == 0) {
-    	    	    //no space for indirect block
-    	    	    if ((inode.ptr[10] = freeMap.find()) == 0) return null;
-    	    	    disk.write(inode.ptr[10], singleIndirect);
-    	      	freeMap.save();
-    	    }
-      	else disk.read(inode.ptr[10], singleIndirect);
-    	    
-    	    int singlePtr = blockNum - 10; //the pointer in single direct block
-    	    boolean fresh = singleIndirect.ptr[singlePtr] == 0;
-    	    if(fresh){
-    	        if(mode == MODE.r) return DirectBlock.hole;
-    	        //no place for direct block
-    	        if((singleIndirect.ptr[singlePtr] = freeMap.find()) == 0) return null;
+
+    /**
+     * Get the leaf indirect block holding the pointer to logical block
+     * blockNum (which must be past the direct pointers and below
+     * MaxFileSzie), walking down from the inode and allocating missing
+     * indirect blocks on the way in MODE.w. The leaf becomes the one
+     * remembered for fd in the file table.
+     *
+     * @param   fd       valid file descriptor of an open file
+     * @param   blockNum logical block number within the file
+     * @param   mode     MODE.w if missing indirect blocks should be
+     *                   allocated, MODE.r otherwise
+     * @returns          the leaf indirect block, null if it is missing
+     *                   (MODE.r) or if the file system is full (MODE.w)
+     */
+    private IndirectBlock getLeaf(int fd, int blockNum, MODE mode) {
+        int first = blockNum - (blockNum - 10) % ptrsPerBlock;
+        IndirectBlock leaf = fileTable.getLeaf(fd, first);
+        if(leaf != null)
+            return leaf;
+
+        // Find the level of indirection (1 for single, 2 for double,
+        // 3 for triple), the inode pointer it starts from, and the
+        // number of data blocks each pointer in that first indirect
+        // block covers. The bounds of the triple level outgrow an int
+        // once blocks are 8 KB.
+        //
+        int n = blockNum - 10, level = 1;
+        long span = 1;
+        for(long bound = singleBound; n >= bound;
+            bound *= ptrsPerBlock, span *= ptrsPerBlock) {
+            n -= bound;
+            ++level;
+        }
+
+        int[] ptrs   = fileTable.getInode(fd).ptr;
+        int   i      = 9 + level;
+        int   ptrNum = 0; // block holding ptrs, 0 for the inode
+        for(;;) {
+            if(ptrs[i] == 0) {
+                if(mode == MODE.r || (ptrs[i] = newIndirectBlock(fd)) == 0)
+                    return null;
+                if(ptrNum != 0)
+                    fileTable.getDirtyIndirectBlocks(fd).set(ptrNum);
             }
-        disk.write(inode.ptr[10], singleIndirect);
-//    	    boolean fresh = singleIndirect.ptr[singlePtr] == 0;
-    	    return new DirectBlock(disk, singleIndirect.ptr[singlePtr], blockOff, fresh);
-    	}
-    
-    public DirectBlock fromDoubleIndirect(int blockNum, Inode inode, int blockOff, MODE mode) {
-    	    if (freeMap.find() == 0) return null;
-    	    IndirectBlock singleIndirect = new IndirectBlock();
-    	    IndirectBlock doubleIndirect = new IndirectBlock();
-    	    
-    	    int singlePtr = (blockNum - 10 - singleBound) / singleBound; //the pointer at single indirect block
-        	int doublePtr = (blockNum - 10 - singleBound) % singleBound; //the pointer at double indirect block
-        	
-	    boolean fresh = doubleIndirect.ptr[doublePtr] == 0;
-	    return new DirectBlock(disk, doubleIndirect.ptr[doublePtr], blockOff, fresh);
-    	}
-    
-    public DirectBlock fromTripleIndirect(int blockNum, Inode inode, int blockOff, MODE mode) {
-       	if (freeMap.find() == 0) return null;
-    	    IndirectBlock singleIndirect = new IndirectBlock();
-	    IndirectBlock doubleIndirect = new IndirectBlock();
-	    IndirectBlock tripleIndirect = new IndirectBlock();
-	    
-	    int singlePtr = (blockNum - 10 - singleBound - doubleBound) / doubleBound;
-       	int doublePtr = ((blockNum - 10 - singleBound - doubleBound) % doubleBound) / singleBound;
-       	int triplePtr =  (blockNum - 10 - singleBound - doubleBound) % singleBound;
-       	
-       	boolean fresh = tripleIndirect.ptr[triplePtr] == 0;
-	    return new DirectBlock(disk, tripleIndirect.ptr[triplePtr], blockOff, fresh);
-    	}
-    
+            ptrNum = ptrs[i];
+            leaf   = getIndirectBlock(fd, ptrNum);
+            if(span == 1)
+                break;
+            ptrs  = leaf.ptr;
+            i     = (int)(n / span);
+            n    %= span;
+            span /= ptrsPerBlock;
+        }
+        fileTable.setLeaf(fd, first, ptrNum, leaf);
+        return leaf;
+    }
+
+    /**
+     * Allocate an empty indirect block for the file open as fd. It is
+     * written out when the file is written back.
+     *
+     * @return block number of the new indirect block, 0 if the file
+     *         system is full
+     */
+    private int newIndirectBlock(int fd) {
+        int blockNum = freeMap.find();
+        if(blockNum != 0) {
+            fileTable.putIndirectBlock(fd, blockNum, new IndirectBlock(blockSize));
+            fileTable.getDirtyIndirectBlocks(fd).set(blockNum);
+        }
+        return blockNum;
+    }
+
+    /**
+     * Free all direct blocks of a file and every indirect block (with
+     * the blocks it points to) in the free map, unless the pointers
+     * hold inline data. No need to clear the inode pointers, they are
+     * cleared when allocating a new file. metadataLock must be held;
+     * you must call freeMap.save() afterwards.
+     */
+    private void freeBlocks(Inode inode) {
+        if(inode.isInline())
+            return;
+        for(int i = 0; i < inode.ptr.length; ++i)
+            if(inode.ptr[i] != 0)
+                if(i < 10)
+                    freeMap.clear(inode.ptr[i]);
+                else
+                    freeIndirectBlock(inode.ptr[i], i - 9);
+    }
+
+    /**
+     * Free an indirect block and every block it points to.
+     *
+     * @param blockNum block number of the indirect block
+     * @param level    1 if it points to data blocks, 2 if it points
+     *                 to single indirect blocks, 3 if it points to
+     *                 double indirect blocks
+     */
+    private void freeIndirectBlock(int blockNum, int level) {
+        IndirectBlock block = new IndirectBlock(blockSize);
+        disk.read(blockNum, block);
+        for(int ptr : block.ptr)
+            if(ptr != 0)
+                if(level > 1)
+                    freeIndirectBlock(ptr, level - 1);
+                else
+                    freeMap.clear(ptr);
+        freeMap.clear(blockNum);
+    }
+
+    /**
+     * Get an indirect block of the file open as fd, reading it from
+     * disk only the first time it is needed while the file is open.
+     * The block is shared by every descriptor open on the file; a
+     * caller that changes a pointer in it must write it to disk.
+     *
+     * @param  fd       valid file descriptor of an open file
+     * @param  blockNum block number of the indirect block
+     * @return          the cached indirect block
+     */
+    private IndirectBlock getIndirectBlock(int fd, int blockNum) {
+        IndirectBlock block = fileTable.getIndirectBlock(fd, blockNum);
+        if(block == null) {
+            block = new IndirectBlock(blockSize);
+            disk.read(blockNum, block);
+            IndirectBlock cached = fileTable.putIndirectBlock(fd, blockNum, block);
+            if(cached != null)
+                block = cached; // read by another thread first
+        }
+        return block;
+    }
+
+    /**
+     * Reserve one contiguous run of free blocks for the holes that a
+     * write of buf.remaining() bytes at position in fd is about to
+     * fill (except those that stay holes, see skipZeros()), so that
+     * the file stays contiguous on disk and writeExtent can transfer
+     * it in one go. Does nothing if fewer than two blocks need
+     * allocating or no free run is long enough.
+     *
+     * Indirect blocks are allocated here, ahead of the run, so that
+     * they do not split it. Reserved blocks are handed out by
+     * allocateDataBlock().
+     */
+    private void preallocate(int fd, ByteBuffer buf, long position) {
+        int len     = buf.remaining();
+        int first   = blockOf(position);
+        int last    = blockOf(position + len - 1);
+        int holes   = 0, ptr;
+        for(int n = first; n <= last; ++n) {
+            if((ptr = getBlockNum(fd, n, MODE.r)) < 0)
+                break;
+            long off = (long)n * blockSize - position;
+            if(ptr == 0 && ! (off >= 0 && off + blockSize <= len &&
+                              isZero(buf, buf.position() + (int)off)))
+                ++holes;
+        }
+        if(holes < 2)
+            return;
+        // Make the indirect blocks exist before the run
+        for(int n = Math.max(first, 10); n <= last && n < MaxFileSzie;
+            n += ptrsPerBlock - (n - 10) % ptrsPerBlock)
+            if(getLeaf(fd, n, MODE.w) == null)
+                return;
+        int run = freeMap.findRun(holes);
+        if(run != 0)
+            fileTable.setPrealloc(fd, run, holes);
+    }
+
+    /**
+     * Allocate a data block, from the run reserved by preallocate()
+     * if any is left, otherwise wherever the free map finds one.
+     *
+     * @return block number of the new data block, 0 if the file
+     *         system is full
+     */
+    private int allocateDataBlock(int fd) {
+        int left = fileTable.getPreallocLeft(fd);
+        if(left == 0)
+            return freeMap.find();
+        int next = fileTable.getPreallocNext(fd);
+        fileTable.setPrealloc(fd, next + 1, left - 1);
+        return next;
+    }
+
+    /**
+     * Give back the blocks reserved by preallocate() for fd that the
+     * write did not use.
+     */
+    private void releasePrealloc(int fd) {
+        int next = fileTable.getPreallocNext(fd);
+        for(int left = fileTable.getPreallocLeft(fd); left > 0; --left)
+            freeMap.clear(next++);
+        fileTable.setPrealloc(fd, 0, 0);
+    }
+
+    /**
+     * Read a run of whole blocks at position in fd straight into
+     * buffer, with a single disk transfer for blocks that are
+     * contiguous on disk (or by zero-filling a run of holes), and
+     * advance the position of buffer past them.
+     *
+     * @param   fd       valid file descriptor of an open file
+     * @param   buf      buffer to read into
+     * @param   len      number of bytes left to read
+     * @param   position offset in the file to read from
+     * @returns int      number of bytes read, 0 if position is not
+     *                   block aligned, if less than a block is left to
+     *                   read, or if the block is beyond the maximum
+     *                   file size
+     */
+    private int readExtent(int fd, ByteBuffer buf, int len, long position) {
+        int count = len / blockSize;
+        if(position % blockSize != 0 || count == 0)
+            return 0;
+
+        int blockNum = blockOf(position);
+        int start = getBlockNum(fd, blockNum, MODE.r);
+        if(start < 0)
+            return 0;
+        int n = 1;
+        if(start == 0) {
+            while(n < count && getBlockNum(fd, blockNum + n, MODE.r) == 0)
+                ++n;
+            fillZeros(buf, n * blockSize);
+        } else {
+            while(n < count &&
+                  getBlockNum(fd, blockNum + n, MODE.r) == start + n)
+                ++n;
+            disk.read(start, n, buf);
+        }
+        return n * blockSize;
+    }
+
+    /**
+     * Read the part of one block at position in fd that buffer has
+     * room for, straight from the block cache (or zeros for a hole),
+     * and advance the position of buffer past it.
+     *
+     * @param   fd       valid file descriptor of an open file
+     * @param   buf      buffer to read into
+     * @param   len      number of bytes left to read
+     * @param   position offset in the file to read from
+     * @returns int      number of bytes read
+     */
+    private int readPart(int fd, ByteBuffer buf, int len, long position) {
+        int blockOff = (int)(position % blockSize);
+        len = Math.min(len, blockSize - blockOff);
+        int ptr = getBlockNum(fd, blockOf(position), MODE.r);
+        if(ptr <= 0)
+            fillZeros(buf, len);
+        else
+            disk.read(ptr, blockOff, buf, len);
+        return len;
+    }
+
+    /**
+     * Put len zero bytes in buffer, as read from a hole.
+     */
+    private static void fillZeros(ByteBuffer buf, int len) {
+        for(int n; len > 0; len -= n)
+            buf.put(ZEROS, 0, n = Math.min(len, ZEROS.length));
+    }
+
     /**
-     * Convert an inumber to the number of the InodeBlock that
-     * contains it.
+     * Skip a run of whole blocks of zeros in buffer that a write at
+     * position in fd would put in holes, leaving them holes (which
+     * read as zeros anyway), and advance the position of buffer past
+     * them. No block is allocated or written for them.
      *
-     * @param inumber inumber of inode to locate
-     * @return int block number of InodeBlock
+     * @param   fd       valid file descriptor of an open file
+     * @param   buf      buffer to write from
+     * @param   len      number of bytes left to write
+     * @param   position offset in the file to write to
+     * @returns int      number of bytes skipped, 0 if position is not
+     *                   block aligned, if less than a block is left to
+     *                   write, or if the first block is not a hole or
+     *                   not all zeros
+     */
+    private int skipZeros(int fd, ByteBuffer buf, int len, long position) {
+        int count = len / blockSize;
+        if(position % blockSize != 0)
+            return 0;
+        int blockNum = blockOf(position), n = 0;
+        while(n < count && isZeroHole(fd, buf, n * blockSize, blockNum + n))
+            ++n;
+        buf.position(buf.position() + n * blockSize);
+        return n * blockSize;
+    }
+
+    /**
+     * Tell whether logical block blockNum of fd is a hole and the
+     * block at off from the position of buf is all zeros, so that
+     * writing it can be skipped.
+     */
+    private boolean isZeroHole(int fd, ByteBuffer buf, int off, int blockNum) {
+        return getBlockNum(fd, blockNum, MODE.r) == 0 &&
+               isZero(buf, buf.position() + off);
+    }
+
+    /**
+     * Tell whether the block at index in buf is all zeros, without
+     * moving the position of buf.
      */
-    private int inumberToBlockNum(int inumber) {
-        return superBlock.iblock0() + (inumber - 1) / InodeBlock.COUNT;
+    private boolean isZero(ByteBuffer buf, int index) {
+        for(int i = 0; i < blockSize; i += 8)
+            if(buf.getLong(index + i) != 0)
+                return false;
+        return true;
     }
 
     /**
-     * Convert an inumber to its offset within its InodeBlock.
+     * Write a run of whole blocks from buffer at position in fd,
+     * allocating blocks as needed, with a single disk transfer for
+     * blocks that are contiguous on disk, and advance the position of
+     * buffer past them. Leaves updating the file size to the caller.
      *
-     * @param inumber inumber of the inode to locate
-     * @return int offset of inode within its InodeBlock
+     * @param   fd       valid file descriptor of an open file
+     * @param   buf      buffer to write from
+     * @param   len      number of bytes left to write
+     * @param   position offset in the file to write to
+     * @returns int      number of bytes written, 0 if position is not
+     *                   block aligned, if less than a block is left to
+     *                   write, or if the block is beyond the maximum
+     *                   file size, -1 if the file system is full
      */
-    private int inumberToOffset(int inumber) {
-        return (inumber - 1) % InodeBlock.COUNT;
+    private int writeExtent(int fd, ByteBuffer buf, int len, long position) {
+        int count = len / blockSize;
+        if(position % blockSize != 0 || count == 0)
+            return 0;
+
+        int blockNum = blockOf(position);
+        int start = getBlockNum(fd, blockNum, MODE.w);
+        if(start <= 0)
+            return start < 0 ? 0 : -1;
+        int n = 1;
+        while(n < count &&
+              ! isZeroHole(fd, buf, n * blockSize, blockNum + n) &&
+              getBlockNum(fd, blockNum + n, MODE.w) == start + n)
+            ++n;
+        disk.write(start, n, buf);
+        return n * blockSize;
+    }
+
+    /**
+     * Write back everything changed through fd, and through any other
+     * descriptor open on the same file (they share the inode), from
+     * the block cache to the disk file. The caller must hold the lock
+     * of the inode for writing.
+     *
+     * The order keeps the file system on disk consistent if we stop
+     * part way: data blocks first, then indirect blocks, then the
+     * free map, and the InodeBlock last, so a pointer on disk never
+     * leads to a block that is unwritten or marked free. With a
+     * journal, the data blocks are written first and all of the
+     * metadata is then committed as one transaction.
+     *
+     * Only a snapshot of the inode goes into its InodeBlock (see
+     * {@link InodeTable}), so other files in the same block need not
+     * be written back with it.
+     */
+    private void writeBack(int fd) {
+        int inumber = fileTable.getInumber(fd);
+        int[] fds = fileTable.getFdsFromInumber(inumber);
+        for(int other : fds)
+            flushBlocks(fileTable.getDirtyBlocks(other));
+
+        metadataLock.lock();
+        try {
+            beginMetadata();
+            for(int other : fds)
+                writeBackIndirectBlocks(other);
+
+            freeMap.save();
+            inodeTable.markDirty(inumber);
+            inodeTable.save();
+            if(journal != null) {
+                commitMetadata();
+                return;
+            }
+            disk.flush(0, superBlock.jblock0());
+            disk.flush(superBlock.iblock0() + (inumber - 1) / inodesPerBlock, 1);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    /**
+     * Write the dirty indirect blocks of fd (to the disk file too,
+     * unless they are going into a journal transaction).
+     */
+    private void writeBackIndirectBlocks(int fd) {
+        BitSet indirect = fileTable.getDirtyIndirectBlocks(fd);
+        for(int n = indirect.nextSetBit(0); n >= 0; n = indirect.nextSetBit(n + 1))
+            disk.write(n, fileTable.getIndirectBlock(fd, n));
+        if(journal == null)
+            flushBlocks(indirect);
+        indirect.clear();
+    }
+
+    /**
+     * Flush a set of blocks from the block cache, one physical write
+     * per run of consecutive blocks, and clear the set.
+     */
+    private void flushBlocks(BitSet blocks) {
+        for(int n = blocks.nextSetBit(0); n >= 0; ) {
+            int end = blocks.nextClearBit(n);
+            disk.flush(n, end - n);
+            n = blocks.nextSetBit(end);
+        }
+        blocks.clear();
     }
 
     /**
      * Update the size of a file if needed so that it is always at
-     * least as large as the current seek pointer.
+     * least as large as end (the end of a write).
      */
-    private void updateFileSize(int fd) {
-        int currentSize = fileTable.getInode(fd).size;
-        int seekPointer = fileTable.getSeekPointer(fd);
-        if(seekPointer > currentSize)
-            fileTable.setFileSize(fd, seekPointer);
+    private void updateFileSize(int fd, long end) {
+        long currentSize = fileTable.getInode(fd).size;
+        if(end > currentSize)
+            fileTable.setFileSize(fd, end);
     }
 
     /**
      * Get the maximum number of bytes that can be read from open file
-     * fd into a buffer of length len. If the seek pointer is beyond
-     * the end of the file, always returns 0 (since nothing can be
-     * read beyond the end of a file).
+     * fd at position into a buffer of length len. If position is
+     * beyond the end of the file, always returns 0 (since nothing can
+     * be read beyond the end of a file).
      */
-    private int getReadLimit(int fd, int len) {
-        int rest = fileTable.getInode(fd).size - fileTable.getSeekPointer(fd);
-        return Math.max(0, Math.min(len, rest));
+    private int getReadLimit(int fd, long position, int len) {
+        long rest = fileTable.getInode(fd).size - position;
+        return (int)Math.max(0, Math.min(len, rest));
+    }
+
+    /**
+     * Split an absolute path into its names. Prints an error message
+     * if it is not absolute or a name is not valid.
+     *
+     * @return the names (none for "/"), null on error
+     */
+    private String[] splitPath(String path) {
+        if(path == null || ! path.startsWith("/")) {
+            System.err.println("Path must start with /: " + path);
+            return null;
+        }
+        String[] parts = path.split("/");
+        int n = 0;
+        for(String name : parts) {
+            if(name.isEmpty())
+                continue;
+            if(name.equals(".") || name.equals("..") ||
+               name.getBytes(StandardCharsets.UTF_8).length > Directory.MAX_NAME) {
+                System.err.println("Bad name " + name + " in " + path);
+                return null;
+            }
+            parts[n++] = name;
+        }
+        String[] names = new String[n];
+        System.arraycopy(parts, 0, names, 0, n);
+        return names;
+    }
+
+    /**
+     * Find the inumber that the first n names stand for, from the
+     * root directory. Prints an error message if there is none.
+     * namespaceLock must be held.
+     *
+     * @return inumber, -1 on error
+     */
+    private int resolve(String[] names, int n) throws IOException {
+        int inumber = getRoot();
+        for(int i = 0; i < n && inumber > 0; ++i) {
+            Directory dir = getDirectory(inumber);
+            if(dir == null)
+                return -1;
+            inumber = lookupName(dir, names[i]);
+            if(inumber == 0)
+                System.err.println("No such file " + names[i]);
+        }
+        return inumber > 0 ? inumber : -1;
+    }
+
+    /**
+     * Get the directory holding the last of names. namespaceLock must
+     * be held.
+     *
+     * @return the directory, null on error
+     */
+    private Directory getParent(String[] names) throws IOException {
+        int inumber = resolve(names, names.length - 1);
+        return inumber < 0 ? null : getDirectory(inumber);
+    }
+
+    /**
+     * Look up a name in the dentry cache, then in the directory.
+     *
+     * @return inumber of the name, 0 if there is none
+     */
+    private int lookupName(Directory dir, String name) throws IOException {
+        int parent  = fileTable.getInumber(dir.getFd());
+        int inumber = dentryCache.get(parent, name);
+        if(inumber == 0) {
+            inumber = dir.lookup(name.getBytes(StandardCharsets.UTF_8));
+            if(inumber != 0)
+                dentryCache.put(parent, name, inumber);
+        }
+        return inumber;
+    }
+
+    /**
+     * Check that the last of names is not in dir yet. Prints an error
+     * message if it is.
+     */
+    private boolean isFree(Directory dir, String[] names) throws IOException {
+        if(lookupName(dir, names[names.length - 1]) == 0)
+            return true;
+        System.err.println("File exists: " + names[names.length - 1]);
+        return false;
+    }
+
+    /**
+     * Flag the inode of a file as having a name, and write it back,
+     * before a directory holds the name; delete(int) then refuses
+     * the file.
+     */
+    private void setNamed(int inumber) {
+        Lock lock = inodeTable.lock(inumber).writeLock();
+        lock.lock();
+        metadataLock.lock();
+        try {
+            inodeTable.get(inumber).flags |= Inode.NAMED;
+            beginMetadata();
+            inodeTable.markDirty(inumber);
+            inodeTable.save();
+            commitMetadata();
+            if(journal == null)
+                disk.flush(superBlock.iblock0() + (inumber - 1) / inodesPerBlock, 1);
+        } finally {
+            metadataLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check that a file is neither a directory nor named in one, so
+     * that delete(int) may delete it. Prints an error message if not.
+     *
+     * @return true if the file may be deleted by inumber
+     */
+    private boolean isAnonymous(int inumber) {
+        int flags = inodeTable.get(inumber).flags;
+        if((flags & Inode.DIRECTORY) != 0) {
+            System.err.println("File " + inumber + " is a directory; unlink it instead");
+            return false;
+        }
+        if((flags & Inode.NAMED) != 0) {
+            System.err.println("File " + inumber + " has a name; unlink it instead");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add the last of names to dir for a new file or directory.
+     *
+     * @return 0 on success, -1 on error
+     */
+    private int link(Directory dir, String[] names, int inumber) throws IOException {
+        String name = names[names.length - 1];
+        setNamed(inumber);
+        if(dir.add(name.getBytes(StandardCharsets.UTF_8), inumber) < 0)
+            return -1;
+        dentryCache.put(fileTable.getInumber(dir.getFd()), name, inumber);
+        return 0;
+    }
+
+    /**
+     * Get the inumber of the root directory, making the directory
+     * (and recording it in the SuperBlock) if there is none yet. A
+     * SuperBlock in the baseline layout has no room to record it, so
+     * such a file system has no paths.
+     *
+     * @return inumber of the root directory, -1 on error
+     */
+    private int getRoot() throws IOException {
+        if(superBlock.root != 0)
+            return superBlock.root;
+        if(superBlock.version == 0) {
+            System.err.println("File system has no root directory; format it to use paths");
+            return -1;
+        }
+        int inumber = makeDirectory();
+        if(inumber < 0)
+            return -1;
+        metadataLock.lock();
+        try {
+            beginMetadata();
+            superBlock.root = inumber;
+            disk.write(0, superBlock);
+            commitMetadata();
+            if(journal == null)
+                disk.flush(0, 1);
+        } finally {
+            metadataLock.unlock();
+        }
+        return inumber;
+    }
+
+    /**
+     * Create an empty directory, with no name yet.
+     *
+     * @return inumber of the directory, -1 on error
+     */
+    private int makeDirectory() throws IOException {
+        int fd = create(true);
+        if(fd < 0)
+            return -1;
+        int inumber = fileTable.getInumber(fd);
+        fileTable.getInode(fd).flags |= Inode.DIRECTORY;
+        try {
+            new Directory(this, fd);
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            close(fd);
+            delete(inumber, true);
+            return -1;
+        }
+        close(fd);
+        return inumber;
+    }
+
+    /**
+     * Get the open Directory for an inumber, opening it (and closing
+     * the least recently used one if DIRECTORY_HANDLES are open) if
+     * needed. Prints an error message if the file is not a
+     * directory. namespaceLock must be held.
+     *
+     * @return the directory, null on error
+     */
+    private Directory getDirectory(int inumber) throws IOException {
+        Directory dir = directories.get(inumber);
+        if(dir != null)
+            return dir;
+        if((inodeTable.get(inumber).flags & Inode.DIRECTORY) == 0) {
+            System.err.println("File " + inumber + " is not a directory");
+            return null;
+        }
+        if(directories.size() >= DIRECTORY_HANDLES)
+            closeDirectory(directories.keySet().iterator().next());
+        int fd = open(inumber, true);
+        if(fd < 0)
+            return null;
+        try {
+            dir = new Directory(this, fd);
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            close(fd);
+            return null;
+        }
+        directories.put(inumber, dir);
+        return dir;
+    }
+
+    /**
+     * Close an open directory (writing it back), if it is open.
+     */
+    private void closeDirectory(int inumber) throws IOException {
+        Directory dir = directories.remove(inumber);
+        if(dir != null)
+            close(dir.getFd());
+    }
+
+    /**
+     * Close every open directory and forget the cached names.
+     */
+    private void closeDirectories() throws IOException {
+        namespaceLock.lock();
+        try {
+            for(Iterator<Directory> i = directories.values().iterator(); i.hasNext(); ) {
+                close(i.next().getFd());
+                i.remove();
+            }
+            dentryCache.clear();
+        } finally {
+            namespaceLock.unlock();
+        }
     }
 }
@@ -0,0 +1,90 @@
+package fileSystem;
+
+/**
+ * Detects sequential reads through a file descriptor and decides
+ * which blocks of the file to prefetch.
+ *
+ * A read that starts where the previous one ended (or at the start
+ * of the file, for the first read) is sequential. Each sequential
+ * read doubles the read-ahead window, from MIN_WINDOW up to
+ * MAX_WINDOW blocks. When the blocks asked for run less than half a
+ * window ahead of the read, the ones up to a window past its end are
+ * asked for in one go; if that includes blocks of the read itself
+ * (e.g., on the first read), the caller should fetch them before
+ * reading, and otherwise in the background. Any other read collapses
+ * the window, so random access prefetches nothing.
+ *
+ * A ReadAhead belongs to one descriptor (see
+ * {@link FileTable#getReadAhead}) and is used by the thread reading
+ * through it; background prefetches only call getExpected().
+ */
+public class ReadAhead {
+    public static final int MIN_WINDOW = 4;
+    public static final int MAX_WINDOW = 64;
+
+    private volatile long expected; // where a sequential read starts
+    private int window;   // blocks to read ahead, 0 if access is random
+    private int ahead;    // logical blocks below this one were asked for
+    private int start;    // first block to prefetch, after access()
+
+    /**
+     * Record a read of len bytes (at least 1) at position, in a file
+     * of blocks of the default size whose last logical block is
+     * lastBlock, and work out the blocks to prefetch.
+     *
+     * @return number of logical blocks to prefetch from getStart(), 0
+     *         for none
+     */
+    public int access(long position, int len, int lastBlock) {
+        return access(position, len, lastBlock, Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Like access(long, int, int), in a file of blocks of blockSize
+     * bytes.
+     */
+    public int access(long position, int len, int lastBlock, int blockSize) {
+        if(position == expected)
+            window = window == 0 ? MIN_WINDOW : Math.min(2 * window, MAX_WINDOW);
+        else
+            window = ahead = 0;
+        expected = position + len;
+        if(window == 0)
+            return 0;
+
+        int first = (int)(position / blockSize);
+        int last  = (int)((position + len - 1) / blockSize);
+        if(ahead - last - 1 >= window / 2)
+            return 0;
+        int end = Math.min(last + 1 + window, lastBlock + 1);
+        start   = Math.max(ahead, first);
+        if(end <= start)
+            return 0;
+        ahead = end;
+        return end - start;
+    }
+
+    /**
+     * Get the first logical block to prefetch, as worked out by the
+     * last access() that asked for any.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Get the position at which the next sequential read starts, i.e.
+     * how far the reader has got. Blocks before it need no prefetching
+     * any more.
+     */
+    public long getExpected() {
+        return expected;
+    }
+
+    /**
+     * Get the current read-ahead window, in blocks.
+     */
+    public int getWindow() {
+        return window;
+    }
+}
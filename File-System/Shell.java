@@ -38,15 +38,19 @@ public class Shell {
      *   <li>0: Whence.SEEK_SET</li>
      *   <li>1: Whence.SEEK_CUR</li>
      *   <li>2: Whence.SEEK_END</li>
+     *   <li>3: Whence.SEEK_DATA</li>
+     *   <li>4: Whence.SEEK_HOLE</li>
      * </ul>
      *
-     * @param seekCode the code for seek whence (0, 1, or 2)
+     * @param seekCode the code for seek whence (0 to 4)
      * @return Whence for the seek
      */
     private static Whence seekCodeToWhence(int seekCode) {
         switch(seekCode) {
             case 0:  return Whence.SEEK_SET;
             case 2:  return Whence.SEEK_END;
+            case 3:  return Whence.SEEK_DATA;
+            case 4:  return Whence.SEEK_HOLE;
             default: return Whence.SEEK_CUR;
         }
     }
@@ -160,7 +164,10 @@ public class Shell {
                     int arg1 = nextValue(cmds);
                     int arg2 = nextValue(cmds);
                     int arg3 = nextValue(cmds);
-                    result = fs.seek(arg1,arg2,seekCodeToWhence(arg3));
+                    result = (int)fs.seek(arg1,arg2,seekCodeToWhence(arg3));
+                } 
+                else if (cmd.equalsIgnoreCase("fsync")) {
+                    result = fs.fsync(nextValue(cmds));
                 } 
                 else if (cmd.equalsIgnoreCase("close")) {
                     result = fs.close(nextValue(cmds));
@@ -231,6 +238,7 @@ public class Shell {
         System.out.println ("\tread fd size");
         System.out.println ("\twrite fd pattern size");
         System.out.println ("\tseek fd offset whence");
+        System.out.println ("\tfsync fd");
         System.out.println ("\tclose fd");
         System.out.println ("\tdelete inum");
         System.out.println ("\tquit");
@@ -1,36 +1,93 @@
 package fileSystem;
 /**
  * A disk block which stores information about a file system.
+ *
+ * The block starts with MAGIC and the version of its layout, then
+ * the ints below and the first bits of the free map. A block that
+ * does not start with MAGIC has the baseline layout (version 0): size,
+ * isize and msize only, with the free map from BASELINE_HEADER on.
+ * Such a file system has no journal and blocks of Disk.BLOCK_SIZE; it
+ * is written back in its own layout so that it keeps its free map
+ * bits where they are.
  */
 public class SuperBlock {
+    public static final int MAGIC   = 0x4d794653; // "MyFS"
+    public static final int VERSION = 1;          // layout written by formatDisk
+
+    public int version = VERSION; // layout of the block, 0 for the baseline
     public int size;       // size of file system (in blocks)
     public int msize;      // number of blocks used by the free space map
     public int isize;      // number of inode blocks
+    public int jsize;      // number of journal blocks (0 for no journal)
+    public int bsize;      // size of a block in bytes (0 if not formatted)
+    public int root;       // inumber of the root directory (0 if none yet)
+
+    // space for MAGIC, the version and 6 ints of metadata before the
+    // free map, or for 3 ints in the baseline layout
+    public static final int HEADER          = 32;
+    public static final int BASELINE_HEADER = 12;
 
-    // first bits of free map (size of block - space for 3 ints of metadata)
-    public byte freeMap[] = new byte[Disk.BLOCK_SIZE - 12];
+    // first bits of free map (size of block - space for metadata)
+    public byte freeMap[];
+
+    /**
+     * Construct an empty SuperBlock for the default block size.
+     */
+    public SuperBlock() {
+        this(Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Construct an empty SuperBlock for blocks of blockSize bytes.
+     */
+    public SuperBlock(int blockSize) {
+        freeMap = new byte[blockSize - HEADER];
+    }
 
     public String toString () {
         return
-            "SuperBlock(size: " + size +
+            "SuperBlock(version: " + version +
+            ", size: " + size +
             ", isize: " + isize +
             ", msize: " + msize +
+            ", jsize: " + jsize +
+            ", bsize: " + bsize +
+            ", root: " + root +
             ", FreeMap(\n  " +
             Bitwise.toString(freeMap, ",", "\n  ", 8) + ")";
     }
 
+    /**
+     * @return bytes before the free map in the layout of this block
+     */
+    public int header() {
+        return version == 0 ? BASELINE_HEADER : HEADER;
+    }
+
+    /**
+     * Get the size of a block of the file system, which formatDisk
+     * chose (the default block size if the disk is not formatted, or
+     * has the baseline layout).
+     *
+     * @return block size in bytes
+     */
+    public int blockSize() {
+        return bsize == 0 ? Disk.BLOCK_SIZE : bsize;
+    }
+
     /**
      * Compute the number of data blocks in the file system. Will
      * return 0 if the file system is uninitialized.
      *
      * The number of data blocks is the number of blocks in the file
      * system minus the super block size (1), the number of inode
-     * blocks, and the number of freemap blocks.
+     * blocks, the number of freemap blocks and the number of journal
+     * blocks.
      *
      * @return number of data blocks
      */
     public int dsize() {
-        return size - isize - msize - 1;
+        return size - isize - msize - jsize - 1;
     }
 
     /**
@@ -44,13 +101,23 @@ public class SuperBlock {
         return msize == 0 ? 0 : 1;
     }
 
+    /**
+     * Compute the number of the first journal block (the journal
+     * follows the freemap blocks; it is empty if jsize is 0).
+     *
+     * @return block number of the first journal block
+     */
+    public int jblock0() {
+        return 1 + msize;
+    }
+
     /**
      * Compute the number of the first inode block.
      *
      * @return block number of the first inode block
      */
     public int iblock0() {
-        return 1 + msize;
+        return 1 + msize + jsize;
     }
 
     /**
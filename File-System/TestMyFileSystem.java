@@ -1,18 +1,27 @@
 package test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.experimental.runners.Enclosed;
 
+import fileSystem.AsyncDisk;
+import fileSystem.BlockCache;
+import fileSystem.DirectBlock;
 import fileSystem.Disk;
 import fileSystem.FileTable;
 import fileSystem.IndirectBlock;
 import fileSystem.Inode;
 import fileSystem.InodeBlock;
+import fileSystem.MappedDisk;
 import fileSystem.MyFileSystem;
+import fileSystem.ReadAhead;
+import fileSystem.SuperBlock;
 import fileSystem.Whence;
 import static org.junit.Assert.*;
 
@@ -71,6 +80,746 @@ public class TestMyFileSystem {
         }
     }
 
+    public static class Geometry {
+        private static final int BS = 4096;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(3000, 2, 8, BS));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testFormat() throws IOException {
+            assertEquals(BS, fs.superBlock.bsize);
+            assertEquals(BS, fs.disk.getBlockSize());
+            assertEquals(Disk.NUM_BLOCKS * Disk.BLOCK_SIZE / BS, fs.disk.getNumBlocks());
+            assertEquals(BS - SuperBlock.HEADER, fs.superBlock.freeMap.length);
+            assertEquals(BS / 4, fs.singleBound);
+
+            // Inodes fill the larger blocks (8 times as many per block)
+            for(int i = 1; i < 2 * BS / Inode.SIZE; ++i) {
+                int fd = fs.create();
+                assertEquals(i, fs.inumber(fd));
+                assertEquals(0, fs.close(fd));
+            }
+
+            assertEquals(-1, fs.formatDisk(100, 2, 0, 1000));
+            assertEquals(-1, fs.formatDisk(fs.disk.getNumBlocks() + 1, 2, 0, BS));
+        }
+
+        @Test
+        public void testRemount() throws IOException {
+            // Spill into the single indirect block and leave a hole
+            byte[] data = new byte[12 * BS + 100];
+            for(int i = 0; i < data.length; ++i)
+                data[i] = (byte)(i / 7);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(data.length, fs.write(fd, data));
+            assertEquals(1, fs.pwrite(fd, data, 5, 1, 40 * BS + 3));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            // A fresh Disk picks the block size up from the SuperBlock
+            fs = new MyFileSystem();
+            assertEquals(BS, fs.blockSize);
+            assertEquals(BS, fs.disk.getBlockSize());
+            fd = fs.open(inumber);
+            byte[] got = new byte[data.length];
+            assertEquals(got.length, fs.read(fd, got));
+            assertTrue(Arrays.equals(data, got));
+            assertEquals(40 * BS, fs.seek(fd, 13 * BS, Whence.SEEK_DATA));
+            assertEquals(1, fs.pread(fd, got, 0, 1, 40 * BS + 3));
+            assertEquals(data[5], got[0]);
+            assertEquals(0, fs.close(fd));
+
+            // Formatting with the default size switches back
+            assertEquals(0, fs.formatDisk(100, 2));
+            assertEquals(Disk.BLOCK_SIZE, fs.disk.getBlockSize());
+            assertEquals(Disk.NUM_BLOCKS, fs.disk.getNumBlocks());
+            assertEquals(IndirectBlock.COUNT, fs.singleBound);
+        }
+    }
+
+    public static class LargeDisk {
+        private static final long GB = 1L << 30;
+
+        @Before
+        public void setUp() {
+            deleteDisk();
+        }
+
+        @After
+        public void tearDown() {
+            deleteDisk();
+        }
+
+        @Test
+        public void testLargeFile() throws IOException {
+            MyFileSystem fs = new MyFileSystem(new Disk(Disk.CACHE_BLOCKS, 3 * GB));
+            assertEquals(0, fs.formatDisk(fs.disk.blockCount(4096), 2, 0, 4096));
+            assertEquals(3 * GB / 4096, fs.superBlock.size);
+
+            // A byte past 5 GB, reached through the triple indirect block
+            byte[] abc = { 'a', 'b', 'c' };
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(3, fs.pwrite(fd, abc, 0, 3, 5 * GB));
+            assertEquals(5 * GB + 3, fs.seek(fd, 0, Whence.SEEK_END));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+            assertTrue(new File("DISK").length() < 3 * GB);
+
+            fs = new MyFileSystem(new Disk(Disk.CACHE_BLOCKS, 3 * GB));
+            fd = fs.open(inumber);
+            assertEquals(5 * GB + 3, fs.seek(fd, 0, Whence.SEEK_END));
+            assertEquals(5 * GB, fs.seek(fd, 0, Whence.SEEK_DATA));
+            byte[] got = new byte[4];
+            assertEquals(3, fs.read(fd, got));
+            assertEquals('c', got[2]);
+            assertEquals(2, fs.pread(fd, got, 0, 4, 5 * GB + 1));
+            assertEquals('b', got[0]);
+            assertEquals(4, fs.pread(fd, got, 0, 4, 4 * GB));
+            assertEquals(0, got[0]);
+            fs.shutdown();
+        }
+
+        @Test
+        public void testTripleIndirectLargeBlocks() throws IOException {
+            byte[] abc = { 'a', 'b', 'c' };
+            for(int bs : new int[] { 8192, 65536 }) {
+                deleteDisk();
+                MyFileSystem fs = new MyFileSystem();
+                assertEquals(0, fs.formatDisk(fs.disk.blockCount(bs), 2, 0, bs));
+
+                // Past the double indirect range
+                long single = bs / 4;
+                long start  = (10 + single + single * single + 5) * bs;
+                int fd = fs.create();
+                int inumber = fs.inumber(fd);
+                assertEquals(start + 7, fs.seek(fd, start + 7, Whence.SEEK_SET));
+                assertEquals(3, fs.write(fd, abc));
+                assertEquals(start, fs.seek(fd, 0, Whence.SEEK_DATA));
+                assertEquals(0, fs.seek(fd, 0, Whence.SEEK_HOLE));
+                assertEquals(0, fs.close(fd));
+                fs.shutdown();
+
+                fs = new MyFileSystem();
+                fd = fs.open(inumber);
+                assertEquals(start + 10, fs.seek(fd, 0, Whence.SEEK_END));
+                assertEquals(start, fs.seek(fd, 0, Whence.SEEK_DATA));
+                byte[] got = new byte[4];
+                assertEquals(3, fs.pread(fd, got, 0, 4, start + 7));
+                assertEquals('c', got[2]);
+                fs.shutdown();
+            }
+        }
+
+        @Test
+        public void testBlocksPastTwoGB() {
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte)'z');
+            Disk disk = new Disk(0, 3 * GB);
+            int last = disk.getNumBlocks() - 1;
+            assertEquals(3 * GB / Disk.BLOCK_SIZE - 1, last);
+            disk.write(last, block);
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.read(last, got);
+            assertTrue(Arrays.equals(block, got));
+            disk.stop(false);
+            assertEquals(3 * GB, new File("DISK").length());
+
+            // Mapped in chunks; a transfer may cross from one to the next
+            disk = new MappedDisk(0, 3 * GB);
+            int first = (int)(2 * MappedDisk.CHUNK / Disk.BLOCK_SIZE) - 1;
+            byte[] two = new byte[2 * Disk.BLOCK_SIZE];
+            Arrays.fill(two, (byte)'y');
+            disk.write(first, 2, two, 0);
+            disk.read(last, got);
+            assertTrue(Arrays.equals(block, got));
+            disk.stop(false);
+
+            disk = new Disk(0, 3 * GB);
+            byte[] back = new byte[2 * Disk.BLOCK_SIZE];
+            disk.read(first, 2, back, 0);
+            assertTrue(Arrays.equals(two, back));
+            disk.stop();
+        }
+    }
+
+    public static class Directories {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(2000, 300));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testPaths() throws IOException {
+            byte[] abc = { 'a', 'b', 'c' };
+            int dir = fs.mkdir("/mail");
+            assertTrue(dir > 0);
+            assertTrue(fs.superBlock.root > 0);
+            assertEquals(fs.superBlock.root, fs.lookup("/"));
+            assertEquals(dir, fs.lookup("//mail/"));
+            int fd = fs.create("/mail/inbox");
+            int inumber = fs.inumber(fd);
+            assertEquals(3, fs.write(fd, abc));
+            assertEquals(-1, fs.unlink("/mail/inbox"));   // open
+            assertEquals(0, fs.close(fd));
+
+            assertEquals(-1, fs.create("/mail/inbox"));   // exists
+            assertEquals(-1, fs.mkdir("/mail/inbox/x"));  // not a directory
+            assertEquals(-1, fs.create("/none/inbox"));
+            assertEquals(-1, fs.create("mail/inbox"));
+            assertEquals(-1, fs.open("/mail"));
+            assertEquals(-1, fs.unlink("/mail"));         // not empty
+            assertEquals(inumber, fs.lookup("/mail/inbox"));
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            fd = fs.open("/mail/inbox");
+            assertEquals(inumber, fs.inumber(fd));
+            byte[] got = new byte[3];
+            assertEquals(3, fs.read(fd, got));
+            assertTrue(Arrays.equals(abc, got));
+            assertEquals(0, fs.close(fd));
+
+            assertEquals(0, fs.unlink("/mail/inbox"));
+            assertEquals(-1, fs.lookup("/mail/inbox"));
+            assertEquals(-1, fs.open(inumber));
+            assertEquals(0, fs.unlink("/mail"));
+            assertEquals(-1, fs.lookup("/mail"));
+        }
+
+        @Test
+        public void testDeleteNamed() throws IOException {
+            assertTrue(fs.mkdir("/dir") > 0);
+            int dir  = fs.lookup("/dir");
+            int root = fs.superBlock.root;
+            int fd = fs.create("/dir/file");
+            int named = fs.inumber(fd);
+            assertEquals(0, fs.close(fd));
+            fd = fs.create();
+            int anonymous = fs.inumber(fd);
+            assertEquals(0, fs.close(fd));
+
+            // Directories and named files only go through unlink
+            assertEquals(-1, fs.delete(root));
+            assertEquals(-1, fs.delete(dir));
+            assertEquals(-1, fs.delete(named));
+            assertEquals(-1, fs.deleteBatch(new int[] { anonymous, named }));
+            assertEquals(-1, fs.deleteBatch(new int[] { dir }));
+            assertEquals(named, fs.lookup("/dir/file"));
+            fs.shutdown();
+
+            // Also after a remount, and the names still work
+            fs = new MyFileSystem();
+            assertEquals(-1, fs.delete(named));
+            assertEquals(-1, fs.delete(fs.superBlock.root));
+            assertTrue(fs.create("/dir/other") >= 0);
+            assertEquals(named, fs.lookup("/dir/file"));
+            assertEquals(0, fs.delete(anonymous));
+            assertEquals(0, fs.unlink("/dir/file"));
+            assertEquals(-1, fs.lookup("/dir/file"));
+
+            // A file reusing the inumber is not reached by the old name
+            fd = fs.create();
+            assertEquals(Math.min(anonymous, named), fs.inumber(fd));
+            assertEquals(0, fs.close(fd));
+            assertEquals(-1, fs.lookup("/dir/file"));
+        }
+
+        @Test
+        public void testDirectoriesKeepFdsFree() throws IOException {
+            assertTrue(fs.mkdir("/a") > 0);
+            assertTrue(fs.mkdir("/a/b") > 0);
+            assertTrue(fs.mkdir("/a/b/c") > 0);
+
+            // Every descriptor for files, with the directories open
+            int[] fds = new int[FileTable.MAX_FILES];
+            for(int i = 0; i < fds.length; ++i)
+                assertTrue((fds[i] = fs.create()) >= 0);
+            assertEquals(-1, fs.create());
+
+            // Path operations still open directories
+            int d = fs.mkdir("/a/b/c/d");
+            assertTrue(d > 0);
+            assertTrue(fs.mkdir("/e") > 0);
+            assertEquals(d, fs.lookup("/a/b/c/d"));
+            assertEquals(-1, fs.create("/a/f"));
+
+            assertEquals(0, fs.close(fds[0]));
+            fds[0] = fs.create("/a/f");
+            assertTrue(fds[0] >= 0);
+            assertEquals(fs.inumber(fds[0]), fs.lookup("/a/f"));
+            for(int fd : fds)
+                assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testManyNames() throws IOException {
+            int n = 2000;
+            int[] inumbers = new int[n];
+            assertTrue(fs.mkdir("/big") > 0);
+            for(int i = 0; i < n; ++i) {
+                int fd = fs.create("/big/file" + i);
+                assertTrue(fd >= 0);
+                inumbers[i] = fs.inumber(fd);
+                assertEquals(0, fs.close(fd));
+            }
+
+            // Looked up in the directory, then in the dentry cache
+            fs.dentryCache.clear();
+            for(int i = 0; i < n; ++i)
+                assertEquals(inumbers[i], fs.lookup("/big/file" + i));
+            int hits = fs.dentryCache.getHits();
+            assertEquals(inumbers[7], fs.lookup("/big/file7"));
+            assertEquals(hits + 2, fs.dentryCache.getHits());
+
+            for(int i = 0; i < n; i += 2)
+                assertEquals(0, fs.unlink("/big/file" + i));
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            for(int i = 0; i < n; ++i)
+                assertEquals(i % 2 == 0 ? -1 : inumbers[i], fs.lookup("/big/file" + i));
+            assertTrue(fs.create("/big/file0") >= 0);
+        }
+    }
+
+    public static class Layout {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            assertEquals(0, fs.formatDisk(100, 2));
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            if(fs != null)
+                fs.shutdown();
+        }
+
+        /**
+         * Rewrite the SuperBlock of the unmounted disk in the layout
+         * of the baseline: size, isize and msize, then the free map.
+         * Bit 0 of the free map is in the last byte of the block in
+         * both layouts.
+         */
+        private static void writeBaseline() {
+            Disk disk = new Disk(0);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            disk.read(0, block);
+            ByteBuffer in = ByteBuffer.wrap(block);
+            assertEquals(SuperBlock.MAGIC, in.getInt(0));
+            byte[] baseline = new byte[Disk.BLOCK_SIZE];
+            ByteBuffer.wrap(baseline)
+                .putInt(in.getInt(8)).putInt(in.getInt(12)).putInt(in.getInt(16))
+                .put(new byte[SuperBlock.HEADER - SuperBlock.BASELINE_HEADER])
+                .put(block, SuperBlock.HEADER, Disk.BLOCK_SIZE - SuperBlock.HEADER);
+            disk.write(0, baseline);
+            disk.stop(false);
+        }
+
+        @Test
+        public void testMountBaseline() throws IOException {
+            byte[] data = new byte[3 * Disk.BLOCK_SIZE];
+            Arrays.fill(data, (byte)'a');
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(data.length, fs.write(fd, data));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+            writeBaseline();
+
+            fs = new MyFileSystem();
+            assertEquals(0, fs.superBlock.version);
+            assertEquals(100, fs.superBlock.size);
+            assertEquals(0, fs.superBlock.jsize);
+            assertEquals(Disk.BLOCK_SIZE - SuperBlock.BASELINE_HEADER,
+                         fs.superBlock.freeMap.length);
+            fd = fs.open(inumber);
+            byte[] got = new byte[data.length];
+            assertEquals(got.length, fs.read(fd, got));
+            assertTrue(Arrays.equals(data, got));
+            assertEquals(0, fs.close(fd));
+
+            // New blocks do not reuse the file's
+            fd = fs.create();
+            int inumber2 = fs.inumber(fd);
+            Arrays.fill(data, (byte)'b');
+            assertEquals(data.length, fs.write(fd, data));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            // Still in the baseline layout
+            fs = new MyFileSystem();
+            assertEquals(0, fs.superBlock.version);
+            fd = fs.open(inumber);
+            assertEquals(got.length, fs.read(fd, got));
+            assertEquals('a', got[got.length - 1]);
+            assertEquals(0, fs.close(fd));
+            fd = fs.open(inumber2);
+            assertEquals(got.length, fs.read(fd, got));
+            assertEquals('b', got[0]);
+            assertEquals(0, fs.close(fd));
+        }
+
+        @Test
+        public void testBaselineHasNoPaths() throws IOException {
+            fs.shutdown();
+            writeBaseline();
+            fs = new MyFileSystem();
+            assertEquals(-1, fs.mkdir("/dir"));
+            assertEquals(-1, fs.create("/file"));
+            assertEquals(-1, fs.lookup("/file"));
+            assertEquals(0, fs.superBlock.root);
+            int fd = fs.create();
+            assertEquals(1, fs.inumber(fd));  // no inode went to a root
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            assertEquals(0, fs.superBlock.version);
+            assertEquals(2, fs.inumber(fs.create()));
+        }
+
+        /**
+         * Overwrite an int of the SuperBlock of the unmounted disk.
+         */
+        private static void patchSuperBlock(int off, int value) {
+            Disk disk = new Disk(0);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            disk.read(0, block);
+            ByteBuffer.wrap(block).putInt(off, value);
+            disk.write(0, block);
+            disk.stop(false);
+        }
+
+        private static void assertRefused() {
+            try {
+                new MyFileSystem(new Disk(0));
+                fail("mounted a bad SuperBlock");
+            } catch(IOException e) {
+                // expected
+            }
+        }
+
+        @Test
+        public void testUnknownVersion() throws IOException {
+            fs.shutdown();
+            fs = null;
+            patchSuperBlock(4, SuperBlock.VERSION + 1);
+            assertRefused();
+        }
+
+        @Test
+        public void testBadBlockSize() throws IOException {
+            fs.shutdown();
+            fs = null;
+            for(int bsize : new int[] { 1000, 256, 1 << 17, -512 }) {
+                patchSuperBlock(24, bsize);
+                assertRefused();
+            }
+
+            // 0 stands for the default block size
+            patchSuperBlock(24, 0);
+            fs = new MyFileSystem();
+            assertEquals(Disk.BLOCK_SIZE, fs.blockSize);
+            assertEquals(100, fs.superBlock.size);
+        }
+    }
+
+    public static class BlockCaching {
+        private Disk disk;
+
+        // Physical transfers of the disk: "r" or "w" and the block
+        private final List<String> io = new ArrayList<String>();
+
+        @Before
+        public void setUp() {
+            deleteDisk();
+        }
+
+        @After
+        public void tearDown() {
+            disk.stop();
+        }
+
+        @Test
+        public void testRangeWithoutCache() {
+            disk = new Disk(0);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for(int blocknum : new int[] { -1, Disk.NUM_BLOCKS }) {
+                try {
+                    disk.read(blocknum, block);
+                    fail("read block " + blocknum);
+                } catch(RuntimeException e) {
+                    // expected
+                }
+                try {
+                    disk.write(blocknum, block);
+                    fail("wrote block " + blocknum);
+                } catch(RuntimeException e) {
+                    // expected
+                }
+            }
+            assertEquals(0, new File(Disk.NAME).length());
+        }
+
+        private Disk loggingDisk(int cacheBlocks) {
+            return new Disk(cacheBlocks) {
+                protected void readBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    io.add("r" + blocknum);
+                    super.readBlocks(blocknum, count, buffer);
+                }
+
+                protected void writeBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    io.add("w" + blocknum);
+                    super.writeBlocks(blocknum, count, buffer);
+                }
+            };
+        }
+
+        private static byte[] block(char c) {
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte)c);
+            return block;
+        }
+
+        @Test
+        public void testHitSkipsRead() {
+            disk = loggingDisk(4);
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.write(5, block('a'));
+            disk.read(5, got);
+            assertTrue(Arrays.equals(block('a'), got));
+            disk.read(9, got);
+            disk.read(9, got);
+            assertEquals(Arrays.asList("r9"), io);
+        }
+
+        @Test
+        public void testEvictLeastRecentlyUsed() {
+            disk = loggingDisk(2);
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.write(1, block('a'));
+            disk.write(2, block('b'));
+            disk.read(1, got);           // 2 is now least recently used
+            disk.write(3, block('c'));   // evicts 2, which is dirty
+            assertEquals(Arrays.asList("w2"), io);
+            disk.read(3, got);
+            disk.read(1, got);
+            disk.write(4, block('d'));   // evicts 3
+            assertEquals(Arrays.asList("w2", "w3"), io);
+
+            io.clear();
+            disk.read(2, got);           // evicts 1
+            assertTrue(Arrays.equals(block('b'), got));
+            assertEquals(Arrays.asList("r2", "w1"), io);
+        }
+
+        @Test
+        public void testStopWritesBack() {
+            disk = loggingDisk(4);
+            disk.write(7, block('a'));
+            disk.write(3, block('b'));
+            assertTrue(io.isEmpty());
+            disk.stop(false);
+            assertEquals(Arrays.asList("w3", "w7"), io);
+
+            disk = new Disk(0);
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.read(7, got);
+            assertTrue(Arrays.equals(block('a'), got));
+            disk.read(3, got);
+            assertTrue(Arrays.equals(block('b'), got));
+        }
+
+        @Test
+        public void testNoCacheWritesThrough() {
+            disk = loggingDisk(0);
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.write(6, block('a'));
+            assertEquals(Arrays.asList("w6"), io);
+            disk.read(6, got);
+            disk.read(6, got);
+            assertTrue(Arrays.equals(block('a'), got));
+            assertEquals(Arrays.asList("w6", "r6", "r6"), io);
+            disk.flush();
+            assertEquals(3, io.size());
+        }
+
+        @Test
+        public void testBlockCacheOrder() {
+            disk = new Disk(0);
+            BlockCache cache = new BlockCache(2);
+            assertNull(cache.put(new BlockCache.Entry(1, new byte[1], false)));
+            assertNull(cache.put(new BlockCache.Entry(2, new byte[1], true)));
+            assertNotNull(cache.get(1));
+            assertNull(cache.get(3));
+            BlockCache.Entry victim = cache.put(new BlockCache.Entry(3, new byte[1], false));
+            assertEquals(2, victim.blockNum);
+            assertTrue(victim.dirty);
+            assertEquals(1, cache.put(new BlockCache.Entry(4, new byte[1], false)).blockNum);
+            assertEquals("cache hits: 1, misses: 1, evictions: 2", cache.toString());
+        }
+    }
+
+    public static class DirectBlocks {
+        private static final int END = Disk.BLOCK_SIZE - 3;
+        private Disk disk;
+
+        @Before
+        public void setUp() {
+            deleteDisk();
+            disk = new Disk(0);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte)'x');
+            disk.write(10, block);
+        }
+
+        @After
+        public void tearDown() {
+            disk.stop();
+        }
+
+        @Test
+        public void testCopyToAtOffset() {
+            byte[] buf = new byte[8];
+            DirectBlock block = new DirectBlock(disk, 10, END, false);
+            assertEquals(3, block.copyTo(buf, 2));    // up to the block end
+            assertEquals("\0\0xxx\0\0\0", new String(buf));
+            block.set(disk, 10, 100, false);
+            assertEquals(6, block.copyTo(buf, 2));    // up to the buffer end
+            assertEquals("\0\0xxxxxx", new String(buf));
+        }
+
+        @Test
+        public void testCopyFromAtOffset() {
+            byte[] abcdef = "abcdef".getBytes();
+            DirectBlock block = new DirectBlock(disk, 10, END, false);
+            assertEquals(3, block.copyFrom(abcdef, 1));
+            block.save();
+            block.set(disk, 10, 100, false);
+            assertEquals(2, block.copyFrom(abcdef, 0, 2));
+            block.save();
+            ByteBuffer in = ByteBuffer.wrap(abcdef);
+            block.set(disk, 10, END - 1, false);
+            assertEquals(4, block.copyFrom(in, 6));
+            assertEquals(4, in.position());
+            block.save();
+
+            // Partial copies read the rest of the block first
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.read(10, got);
+            byte[] want = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(want, (byte)'x');
+            System.arraycopy("ab".getBytes(), 0, want, 100, 2);
+            System.arraycopy("abcd".getBytes(), 0, want, END - 1, 4);
+            assertTrue(Arrays.equals(want, got));
+        }
+
+        @Test
+        public void testCopyFromFresh() {
+            DirectBlock block = new DirectBlock(disk, 10, 100, true);
+            assertEquals(2, block.copyFrom("ab".getBytes(), 0));
+            block.save();
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            disk.read(10, got);
+            byte[] want = new byte[Disk.BLOCK_SIZE];
+            want[100] = 'a';
+            want[101] = 'b';
+            assertTrue(Arrays.equals(want, got));
+        }
+    }
+
+    public static class Mapping {
+        private static final long GB = 1L << 30;
+        private Disk disk;
+
+        @Before
+        public void setUp() {
+            deleteDisk();
+        }
+
+        @After
+        public void tearDown() {
+            disk.stop();
+        }
+
+        private static byte[] blocks(int count, char c) {
+            byte[] blocks = new byte[count * Disk.BLOCK_SIZE];
+            Arrays.fill(blocks, (byte)c);
+            return blocks;
+        }
+
+        @Test
+        public void testRoundTrip() {
+            int boundary = (int)(MappedDisk.CHUNK / Disk.BLOCK_SIZE);
+            disk = new MappedDisk(4, 2 * GB);
+            disk.write(3, blocks(1, 'a'));
+            disk.write(boundary + 5, blocks(1, 'b'));
+            disk.write(boundary - 1, 2, blocks(2, 'c'), 0); // across chunks
+            disk.stop(false);
+
+            disk = new MappedDisk(0, 2 * GB);
+            byte[] got = new byte[2 * Disk.BLOCK_SIZE];
+            disk.read(3, 1, got, 0);
+            assertTrue(Arrays.equals(blocks(1, 'a'), Arrays.copyOf(got, Disk.BLOCK_SIZE)));
+            disk.read(boundary + 5, 1, got, 0);
+            assertTrue(Arrays.equals(blocks(1, 'b'), Arrays.copyOf(got, Disk.BLOCK_SIZE)));
+            disk.read(boundary - 1, 2, got, 0);
+            assertTrue(Arrays.equals(blocks(2, 'c'), got));
+            disk.read(boundary + 6, 1, got, 0);
+            assertEquals(0, got[0]);   // never written
+        }
+
+        @Test
+        public void testSyncForcesMapping() throws IOException {
+            final int[] syncs = new int[1];
+            disk = new MappedDisk(0) {
+                protected void sync() {
+                    syncs[0]++;
+                    super.sync();
+                }
+            };
+            disk.write(2, blocks(1, 'x'));
+            disk.force();
+            assertEquals(1, syncs[0]);
+
+            // The file holds the block before the disk is stopped
+            RandomAccessFile file = new RandomAccessFile(Disk.NAME, "r");
+            byte[] got = new byte[Disk.BLOCK_SIZE];
+            file.seek(2 * Disk.BLOCK_SIZE);
+            file.readFully(got);
+            file.close();
+            assertTrue(Arrays.equals(blocks(1, 'x'), got));
+        }
+    }
+
     public static class FreeMap {
         private MyFileSystem fs;
         
@@ -99,6 +848,71 @@ public class TestMyFileSystem {
             fs.freeMap.clear(42);                   // clear another block
             assertEquals(42, fs.freeMap.find());    // block we just cleared
         }
+
+        @Test
+        public void testFreeMapFindAcrossWords() throws IOException {
+            // More than two 4096-block groups, with freemap blocks
+            assertEquals(0, fs.formatDisk(10000, 2));
+            assertTrue(fs.superBlock.msize > 0);
+            int d0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 200; ++i)
+                assertEquals(d0 + i, fs.freeMap.find());
+
+            // Free bits at both ends of a word, and in the next one
+            fs.freeMap.clear(d0 + 127);
+            fs.freeMap.clear(d0 + 64);
+            fs.freeMap.clear(d0 + 63);
+            assertEquals(d0 + 63, fs.freeMap.find());
+            assertEquals(d0 + 64, fs.freeMap.find());
+            assertEquals(d0 + 127, fs.freeMap.find());
+            assertEquals(d0 + 200, fs.freeMap.find());
+
+            // Once the first group is full, find() goes on in the next
+            for(int i = 201; i < 4096; ++i)
+                assertEquals(d0 + i, fs.freeMap.find());
+            assertEquals(d0 + 4096, fs.freeMap.find());
+            fs.freeMap.clear(d0 + 4095);
+            assertEquals(d0 + 4095, fs.freeMap.find());
+            assertEquals(d0 + 4097, fs.freeMap.find());
+        }
+
+        @Test
+        public void testFreeMapSummary() throws IOException {
+            assertEquals(0, fs.formatDisk(10000, 2));
+            int d0 = fs.superBlock.dblock0();
+            for(int i = 0; i < 2 * 4096; ++i)
+                assertEquals(d0 + i, fs.freeMap.find());
+
+            // Clearing a bit in a full group makes it searched again
+            fs.freeMap.clear(d0 + 4096 + 10);
+            fs.freeMap.clear(d0 + 10);
+            assertEquals(d0 + 10, fs.freeMap.find());
+            assertEquals(d0 + 4096 + 10, fs.freeMap.find());
+            assertEquals(d0 + 8192, fs.freeMap.find());
+
+            // The summary is rebuilt from the saved map
+            fs.freeMap.clear(d0 + 5000);
+            fs.freeMap.save();
+            fs.shutdown();
+            fs = new MyFileSystem();
+            assertEquals(d0 + 5000, fs.freeMap.find());
+            assertEquals(d0 + 8193, fs.freeMap.find());
+        }
+
+        @Test
+        public void testFreeMapFindRun() {
+            for(int i = 6; i < 100; ++i)            // reserve every block
+                assertEquals(i, fs.freeMap.find());
+            for(int i = 10; i < 15; ++i)            // free run of 5
+                fs.freeMap.clear(i);
+            for(int i = 20; i < 23; ++i)            // free run of 3
+                fs.freeMap.clear(i);
+            assertEquals(20, fs.freeMap.findRun(3)); // best fit
+            assertEquals(0, fs.freeMap.findRun(6));  // no run long enough
+            assertEquals(10, fs.freeMap.findRun(4));
+            assertEquals(14, fs.freeMap.find());     // one left of the 5
+            assertEquals(0, fs.freeMap.find());
+        }
     }
 
     public static class FileSystemInterface {
@@ -133,15 +947,122 @@ public class TestMyFileSystem {
                 fs.fileTable.free(fd);
         }
 
+        @Test
+        public void testPreadPwrite() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[700];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(700, fs.write(fd, buf));
+
+            // Write the middle 100 bytes of buf across the block
+            // boundary, then read them back, without moving the seek
+            // pointer
+            Arrays.fill(buf, 300, 400, (byte)'b');
+            assertEquals(100, fs.pwrite(fd, buf, 300, 100, 480));
+            assertEquals(700, fs.seek(fd, 0, Whence.SEEK_CUR));
+            byte[] foo = new byte[1000];
+            assertEquals(200, fs.pread(fd, foo, 10, 200, 450));
+            assertEquals((byte)'a', foo[10 + 29]);
+            assertEquals((byte)'b', foo[10 + 30]);
+            assertEquals((byte)'b', foo[10 + 129]);
+            assertEquals((byte)'a', foo[10 + 130]);
+            assertEquals(700, fs.seek(fd, 0, Whence.SEEK_CUR));
+
+            // Reads stop at the end of the file; writes past it grow it
+            assertEquals(0, fs.pread(fd, foo, 0, 10, 700));
+            assertEquals(10, fs.pwrite(fd, buf, 0, 10, 2000));
+            assertEquals(2010, fs.seek(fd, 0, Whence.SEEK_END));
+            assertEquals(10, fs.pread(fd, foo, 0, 100, 2000));
+            assertEquals((byte)'a', foo[9]);
+
+            assertEquals(-1, fs.pread(fd, foo, 990, 20, 0));  // past buffer
+            assertEquals(-1, fs.pwrite(fd, buf, 0, 10, -1));  // before file
+        }
+
+        @Test
+        public void testOffsetAndByteBuffer() throws IOException {
+            int fd = fs.create();
+
+            // Write 1500 bytes from the middle of an array, then 1100
+            // from a direct buffer (two whole blocks and a bit)
+            byte[] buf = new byte[2000];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte)i;
+            assertEquals(1500, fs.write(fd, buf, 250, 1500));
+            ByteBuffer direct = ByteBuffer.allocateDirect(1200);
+            direct.position(100);
+            while(direct.hasRemaining())
+                direct.put((byte)'d');
+            direct.position(100);
+            assertEquals(1100, fs.write(fd, direct));
+            assertEquals(1200, direct.position());
+            assertEquals(-1, fs.write(fd, buf, 1500, 501));  // past buffer
+
+            // Read it back into a heap buffer and a direct one
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            ByteBuffer heap = ByteBuffer.allocate(1600);
+            heap.limit(1500);
+            assertEquals(1500, fs.read(fd, heap));
+            assertEquals((byte)250, heap.get(0));
+            assertEquals((byte)1749, heap.get(1499));
+            direct.clear();
+            assertEquals(1100, fs.read(fd, direct));
+            assertEquals(1100, direct.position());
+            assertEquals((byte)'d', direct.get(0));
+            assertEquals((byte)'d', direct.get(1099));
+
+            byte[] foo = new byte[10];
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+            assertEquals(4, fs.read(fd, foo, 6, 4));
+            assertEquals((byte)253, foo[9]);
+            assertEquals(0, foo[5]);
+        }
+
+        @Test
+        public void testManyOpenFiles() throws IOException {
+            fs.shutdown();
+            fs = new MyFileSystem(new Disk(), 1000);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            for(int i = 1; i < 1000; ++i)
+                assertEquals(i, fs.open(inumber));
+            assertEquals(-1, fs.open(inumber));    // file table is full
+            assertEquals(-1, fs.delete(inumber));  // file is open
+            for(fd = 0; fd < 1000; ++fd)
+                assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+
+            // The descriptor freed last is reused first
+            assertEquals(999, fs.create());
+        }
+
         @Test
         public void testCreate() throws IOException {
-            int maxInumber = 2 * InodeBlock.COUNT;
+            // The last inode of the last InodeBlock is not a valid inumber
+            int maxInumber = 2 * InodeBlock.COUNT - 1;
             // assume maxInumber < FileTable.MAX_FILES
             for(int inumber = 1; inumber <= maxInumber; ++inumber) {
                 int fd = fs.create();
                 assertEquals(inumber, fs.fileTable.getInumber(fd));
             }
             assertEquals(-1, fs.create());
+            assertEquals(-1, fs.open(maxInumber + 1));
+        }
+
+        @Test
+        public void testCreateBatchInRange() throws IOException {
+            int maxInumber = 2 * InodeBlock.COUNT - 1;
+            assertNull(fs.createBatch(maxInumber + 1));
+            int[] inumbers = fs.createBatch(maxInumber);
+            assertEquals(maxInumber, inumbers.length);
+            for(int inumber : inumbers) {
+                int fd = fs.open(inumber);
+                assertTrue(fd >= 0);
+                assertEquals(0, fs.close(fd));
+            }
+            assertEquals(-1, fs.create());
+            assertNull(fs.createBatch(1));
+            assertEquals(0, fs.deleteBatch(inumbers));
         }
 
         @Test
@@ -199,23 +1120,109 @@ public class TestMyFileSystem {
             fd = fs.create();
             assertEquals(1, fs.create());
 
-            // Re-open the file, the size should still be 100
-            fd = fs.open(1);
-            assertEquals(2, fd);
-            assertEquals(100, fs.fileTable.getInode(fd).size);
+            // Re-open the file, the size should still be 100
+            fd = fs.open(1);
+            assertEquals(2, fd);
+            assertEquals(100, fs.fileTable.getInode(fd).size);
+        }
+
+        @Test
+        public void testDelete() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(-1, fs.delete(inumber));
+            assertEquals(0, fs.close(fd));
+            fd = fs.open(inumber);
+            assertEquals(0, fd);
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(-1, fs.open(inumber));
+        }
+
+        @Test
+        public void testCreateReusesFreedInode() throws IOException {
+            for(int inumber = 1; inumber <= 3; ++inumber)
+                assertEquals(0, fs.close(fs.create()));
+            assertEquals(0, fs.delete(2));
+            int fd = fs.create();
+            assertEquals(2, fs.inumber(fd));   // lowest free inode
+            assertEquals(4, fs.inumber(fs.create()));
+
+            // Open files share the cached inode
+            int fd2 = fs.open(2);
+            fs.fileTable.getInode(fd).size = 7;
+            assertEquals(7, fs.fileTable.getInode(fd2).size);
+        }
+
+        @Test
+        public void testFsync() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[700];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(700, fs.write(fd, buf));
+            assertEquals(0, fs.fsync(fd));
+            assertEquals(-1, fs.fsync(FileTable.MAX_FILES - 1));
+
+            // A second file system on the same disk file sees the
+            // file without this one being shut down
+            MyFileSystem other = new MyFileSystem();
+            int fd2 = other.open(fs.inumber(fd));
+            byte[] foo = new byte[1000];
+            assertEquals(700, other.read(fd2, foo));
+            assertEquals((byte)'a', foo[699]);
+            other.disk.stop(false);
+        }
+
+        @Test
+        public void testFsyncForcesDisk() throws IOException {
+            fs.shutdown();
+            final int[] syncs = new int[1];
+            Disk disk = new Disk() {
+                protected void sync() throws IOException {
+                    syncs[0]++;
+                    super.sync();
+                }
+            };
+            fs = new MyFileSystem(disk);
+            int fd = fs.create();
+            assertEquals(3, fs.write(fd, new byte[] { 'f', 'o', 'o' }));
+            int before = syncs[0];
+            assertEquals(0, fs.fsync(fd));
+            assertEquals(before + 1, syncs[0]);
+            assertEquals(0, fs.close(fd));
         }
 
         @Test
-        public void testDelete() throws IOException {
+        public void testDeleteWritesInodeFirst() throws IOException {
+            fs.shutdown();
+            final List<Integer> events = new ArrayList<Integer>();
+            Disk disk = new Disk() {
+                protected void writeBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    events.add(blocknum);
+                    super.writeBlocks(blocknum, count, buffer);
+                }
+            };
+            fs = new MyFileSystem(disk);
             int fd = fs.create();
             int inumber = fs.inumber(fd);
-            assertEquals(-1, fs.delete(inumber));
-            assertEquals(0, fs.close(fd));
-            fd = fs.open(inumber);
-            assertEquals(0, fd);
+            assertEquals(700, fs.write(fd, new byte[700]));
             assertEquals(0, fs.close(fd));
+
+            // The freed inode reaches the disk file before the free map
+            // that frees its blocks
+            events.clear();
             assertEquals(0, fs.delete(inumber));
-            assertEquals(-1, fs.open(inumber));
+            int inode = events.indexOf(fs.superBlock.iblock0());
+            assertTrue(inode >= 0);
+            assertTrue(events.indexOf(0) > inode);
+
+            // A second file system on the same disk file (as after a
+            // crash) sees the file deleted
+            MyFileSystem other = new MyFileSystem();
+            assertEquals(-1, other.open(inumber));
+            assertEquals(fs.superBlock.dblock0(), other.freeMap.find());
+            other.disk.stop(false);
         }
 
         private void testFileSize(int fd, int expectedSize) {
@@ -226,13 +1233,13 @@ public class TestMyFileSystem {
         public void testWrite() throws IOException {
             int fd = fs.create();
 
-            // Write 3 bytes and make sure space is allocated and
-            // size is adjusted
+            // Write 3 bytes and make sure size is adjusted (they are
+            // held in the inode, so no space is allocated yet)
             byte[] foo = { 'f', 'o', 'o' };
             assertEquals(3, fs.write(fd, foo));
             assertEquals(3, fs.seek(fd, 0, Whence.SEEK_CUR));
-            assertEquals(4, fs.freeMap.find()); // block 3 should be used
-            fs.freeMap.clear(4);
+            assertEquals(3, fs.freeMap.find()); // held inline, no block used
+            fs.freeMap.clear(3);
             testFileSize(fd, 3);
 
             // Write 4 blocks worth of data and check again
@@ -317,6 +1324,232 @@ public class TestMyFileSystem {
             assertEquals('r', buf[i + 2]);
         }
 
+        @Test
+        public void testExtents() throws IOException {
+            // Physical transfers, as "r" or "w", first block and count
+            fs.shutdown();
+            final List<String> io = new ArrayList<String>();
+            fs = new MyFileSystem(new Disk(0) {
+                protected void readBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    io.add("r" + blocknum + "+" + count);
+                    super.readBlocks(blocknum, count, buffer);
+                }
+
+                protected void writeBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    io.add("w" + blocknum + "+" + count);
+                    super.writeBlocks(blocknum, count, buffer);
+                }
+            });
+            fs.formatDisk(100, 2);
+            int bs = Disk.BLOCK_SIZE;
+            byte[] data = new byte[7 * bs];
+            for(int i = 0; i < data.length; ++i)
+                data[i] = (byte)('a' + i / bs);
+            Arrays.fill(data, 4 * bs, 6 * bs, (byte)0);
+
+            // Blocks 0-1 and 2-3 of the file are apart on disk, since
+            // another file took the block in between, and 4-5 are a hole
+            int fd = fs.create();
+            int other = fs.create();
+            assertEquals(2 * bs, fs.write(fd, data, 0, 2 * bs));
+            assertEquals(bs, fs.write(other, data, 0, bs));
+            assertEquals(2 * bs, fs.write(fd, data, 2 * bs, 2 * bs));
+            assertEquals(bs, fs.pwrite(fd, data, 6 * bs, bs, 6 * bs));
+            int[] ptr = fs.fileTable.getInode(fd).ptr;
+            assertEquals(ptr[0] + 1, ptr[1]);
+            assertEquals(ptr[2] + 1, ptr[3]);
+            assertTrue(ptr[2] != ptr[1] + 1);
+            assertEquals(0, ptr[4]);
+            assertEquals(0, ptr[5]);
+
+            // One transfer per run of contiguous blocks, none for the hole
+            io.clear();
+            byte[] got = new byte[data.length];
+            assertEquals(got.length, fs.pread(fd, got, 0, got.length, 0));
+            assertTrue(Arrays.equals(data, got));
+            assertEquals(Arrays.asList("r" + ptr[0] + "+2", "r" + ptr[2] + "+2",
+                                       "r" + ptr[6] + "+1"), io);
+
+            io.clear();
+            Arrays.fill(data, (byte)'z');
+            assertEquals(data.length, fs.pwrite(fd, data, 0, data.length, 0));
+            assertTrue(io.contains("w" + ptr[0] + "+2"));
+            assertTrue(io.contains("w" + ptr[2] + "+2"));
+            assertTrue(io.size() < 7);
+            assertEquals(got.length, fs.pread(fd, got, 0, got.length, 0));
+            assertTrue(Arrays.equals(data, got));
+        }
+
+        @Test
+        public void testWriteNothing() throws IOException {
+            int fd = fs.create();
+            byte[] buf = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(buf.length, fs.write(fd, buf));
+
+            // An empty write past the end does not grow the file
+            assertEquals(100000, fs.seek(fd, 100000, Whence.SEEK_SET));
+            assertEquals(0, fs.write(fd, new byte[0]));
+            testFileSize(fd, Disk.BLOCK_SIZE);
+
+            // Nor does a write that found no room for anything
+            fs.formatDisk(4, 1);  // 2 data blocks
+            fd = fs.create();
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(-1, fs.pwrite(fd, buf, 0, buf.length, 5 * Disk.BLOCK_SIZE));
+            testFileSize(fd, 2 * Disk.BLOCK_SIZE);
+        }
+
+        @Test
+        public void testSparseWrite() throws IOException {
+            int fd = fs.create();
+            Inode inode = fs.inodeTable.get(fs.inumber(fd));
+
+            // Whole blocks of zeros over holes are not allocated
+            byte[] buf = new byte[6 * Disk.BLOCK_SIZE];
+            buf[0] = 'x';
+            buf[5 * Disk.BLOCK_SIZE - 1] = 'y';
+            assertEquals(buf.length, fs.write(fd, buf));
+            testFileSize(fd, buf.length);
+            assertTrue(inode.ptr[0] != 0);
+            for(int i = 1; i < 4; ++i)
+                assertEquals(0, inode.ptr[i]);
+            assertTrue(inode.ptr[4] != 0);
+            assertEquals(0, inode.ptr[5]);
+            byte[] got = new byte[buf.length];
+            assertEquals(buf.length, fs.pread(fd, got, 0, got.length, 0));
+            assertTrue(Arrays.equals(buf, got));
+
+            // Zeros over data are written, the block stays
+            assertEquals(Disk.BLOCK_SIZE,
+                         fs.pwrite(fd, new byte[Disk.BLOCK_SIZE], 0, Disk.BLOCK_SIZE, 0));
+            assertTrue(inode.ptr[0] != 0);
+            assertEquals(1, fs.pread(fd, got, 0, 1, 0));
+            assertEquals(0, got[0]);
+
+            int bs = Disk.BLOCK_SIZE;
+            assertEquals(0,          fs.seek(fd, 0, Whence.SEEK_DATA));
+            assertEquals(bs,         fs.seek(fd, 0, Whence.SEEK_HOLE));
+            assertEquals(4 * bs,     fs.seek(fd, bs + 7, Whence.SEEK_DATA));
+            assertEquals(4 * bs + 9, fs.seek(fd, 4 * bs + 9, Whence.SEEK_DATA));
+            assertEquals(5 * bs,     fs.seek(fd, 4 * bs, Whence.SEEK_HOLE));
+            assertEquals(5 * bs + 1, fs.seek(fd, 5 * bs + 1, Whence.SEEK_HOLE));
+            assertEquals(-1,         fs.seek(fd, 5 * bs, Whence.SEEK_DATA));
+            assertEquals(-1,         fs.seek(fd, 6 * bs, Whence.SEEK_HOLE));
+
+            // Missing indirect blocks are skipped as holes
+            int far = (10 + IndirectBlock.COUNT + 3) * bs;
+            assertEquals(1, fs.pwrite(fd, buf, 0, 1, far));
+            assertEquals(far,     fs.seek(fd, 5 * bs, Whence.SEEK_DATA));
+            assertEquals(far + 1, fs.seek(fd, far, Whence.SEEK_HOLE));
+            assertEquals(far + 1, fs.seek(fd, 0, Whence.SEEK_CUR));
+        }
+
+        @Test
+        public void testBatch() throws IOException {
+            int[] inumbers = fs.createBatch(10);
+            assertEquals(10, inumbers.length);
+            for(int i = 0; i < inumbers.length; ++i)
+                assertEquals(i + 1, inumbers[i]);
+            assertNull(fs.createBatch(2 * InodeBlock.COUNT));
+            int fd = fs.create();
+            assertEquals(11, fs.inumber(fd));           // none taken
+            assertEquals(0, fs.close(fd));
+
+            // Give two of them data
+            byte[] buf = new byte[3 * Disk.BLOCK_SIZE];
+            Arrays.fill(buf, (byte)'b');
+            int dblock0 = fs.superBlock.dblock0();
+            for(int inumber : new int[] { 3, 7 }) {
+                fd = fs.open(inumber);
+                assertEquals(buf.length, fs.write(fd, buf));
+                assertEquals(0, fs.close(fd));
+            }
+
+            // Nothing goes if one of them cannot
+            fd = fs.open(5);
+            assertEquals(-1, fs.deleteBatch(new int[] { 7, 5, 3 }));
+            assertEquals(-1, fs.deleteBatch(new int[] { 7, 7 }));
+            assertEquals(0, fs.close(fd));
+            assertEquals(dblock0 + 6, fs.freeMap.find());
+            fs.freeMap.clear(dblock0 + 6);
+
+            assertEquals(0, fs.deleteBatch(new int[] { 7, 5, 3, 1 }));
+            assertEquals(-1, fs.open(3));
+            assertEquals(-1, fs.deleteBatch(new int[] { 2, 3 }));
+            assertEquals(dblock0, fs.freeMap.find());
+            fs.shutdown();
+
+            // Both batches reached the disk
+            fs = new MyFileSystem();
+            assertEquals(-1, fs.open(5));
+            fd = fs.open(2);
+            assertTrue(fd >= 0);
+            assertEquals(0, fs.close(fd));
+            assertEquals(1, fs.inumber(fs.create()));
+        }
+
+        @Test
+        public void testInline() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            Inode inode = fs.inodeTable.get(inumber);
+            int dblock0 = fs.superBlock.dblock0();
+
+            // Up to Inode.INLINE_SIZE bytes take no data block
+            byte[] buf = new byte[Inode.INLINE_SIZE + 10];
+            for(int i = 0; i < buf.length; ++i)
+                buf[i] = (byte)('a' + i % 26);
+            assertEquals(20, fs.write(fd, buf, 0, 20));
+            assertEquals(Inode.INLINE_SIZE - 20,
+                         fs.pwrite(fd, buf, 20, Inode.INLINE_SIZE - 20, 20));
+            assertTrue(inode.isInline());
+            assertEquals(0, fs.close(fd));
+            assertEquals(dblock0, fs.freeMap.find());
+            fs.freeMap.clear(dblock0);
+            fs.shutdown();
+
+            fs = new MyFileSystem();
+            fd = fs.open(inumber);
+            byte[] got = new byte[buf.length];
+            assertEquals(Inode.INLINE_SIZE, fs.read(fd, got));
+            assertEquals('z', got[25]);
+            assertEquals(Inode.INLINE_SIZE - 1, fs.seek(fd, -1, Whence.SEEK_END));
+            assertEquals(Inode.INLINE_SIZE, fs.seek(fd, 3, Whence.SEEK_HOLE));
+            assertEquals(0, fs.pwrite(fd, buf, 0, 0, Inode.INLINE_SIZE + 40));
+            assertEquals(Inode.INLINE_SIZE, fs.seek(fd, 0, Whence.SEEK_END));
+            assertTrue(fs.inodeTable.get(inumber).isInline());
+
+            // Growing past it moves the data to a block
+            assertEquals(buf.length, fs.pwrite(fd, buf, 0, buf.length, 0));
+            inode = fs.inodeTable.get(inumber);
+            assertFalse(inode.isInline());
+            assertEquals(dblock0, inode.ptr[0]);
+            assertEquals(buf.length, fs.pread(fd, got, 0, got.length, 0));
+            assertTrue(Arrays.equals(buf, got));
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(dblock0, fs.freeMap.find());
+
+            // Deleting an inline file frees no blocks, even if its data
+            // reads like a block number. An empty write does not make
+            // a file inline or grow it.
+            fd = fs.create();
+            inumber = fs.inumber(fd);
+            assertEquals(0, fs.pwrite(fd, buf, 0, 0, 40));
+            assertEquals(0, fs.seek(fd, 0, Whence.SEEK_END));
+            assertFalse(fs.inodeTable.get(inumber).isInline());
+            byte[] ptr = { 0, 0, 0, (byte)dblock0 };
+            assertEquals(4, fs.write(fd, ptr));
+            assertEquals(dblock0, fs.inodeTable.get(inumber).ptr[0]);
+            assertEquals(0, fs.close(fd));
+            assertEquals(0, fs.delete(inumber));
+            assertEquals(dblock0 + 1, fs.freeMap.find());
+        }
+
         @Test
         public void testOverwrite() throws IOException {
             int fd = fs.create();
@@ -346,6 +1579,448 @@ public class TestMyFileSystem {
         }
     }
     
+    public static class Journaling {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(100, 5, 10);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testFormatWithJournal() throws IOException {
+            assertEquals(10, fs.superBlock.jsize);
+            assertEquals(1, fs.superBlock.jblock0());  // after super
+            assertEquals(11, fs.superBlock.iblock0()); // after journal
+            assertEquals(84, fs.superBlock.dsize());
+            assertEquals(16, fs.freeMap.find());
+            assertEquals(-1, fs.formatDisk(100, 5, 3)); // too small
+        }
+
+        @Test
+        public void testReplay() throws IOException {
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[700];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(700, fs.write(fd, buf));
+            assertEquals(0, fs.fsync(fd));
+
+            // The inode and free map only reached the journal, so a
+            // second file system on the same disk file (as after a
+            // crash) must replay it to see the file
+            MyFileSystem other = new MyFileSystem();
+            int fd2 = other.open(inumber);
+            byte[] foo = new byte[1000];
+            assertEquals(700, other.read(fd2, foo));
+            assertEquals((byte)'a', foo[699]);
+            assertEquals(18, other.freeMap.find()); // after 2 blocks used
+            other.disk.stop(false);
+        }
+
+        @Test
+        public void testWriteBarriers() throws IOException {
+            // Physical writes (by first block) and syncs (-1), in order
+            fs.shutdown();
+            final List<Integer> events = new ArrayList<Integer>();
+            Disk disk = new Disk() {
+                protected void writeBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    events.add(blocknum);
+                    super.writeBlocks(blocknum, count, buffer);
+                }
+
+                protected void sync() throws IOException {
+                    events.add(-1);
+                    super.sync();
+                }
+            };
+            fs = new MyFileSystem(disk);
+            int jblock0 = fs.superBlock.jblock0();
+            int iblock0 = fs.superBlock.iblock0();
+            events.clear();
+            int fd = fs.create();
+            assertEquals(700, fs.write(fd, new byte[700]));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+
+            // The transaction is forced before its home blocks are
+            // written, and the home blocks before the journal header
+            // starts the journal over
+            int append = events.indexOf(jblock0 + 1);
+            int home   = events.indexOf(iblock0);
+            assertTrue(append >= 0 && home > append);
+            assertTrue(events.subList(append, home).contains(-1));
+            int header = events.lastIndexOf(jblock0);
+            assertTrue(header > home);
+            assertTrue(events.subList(home, header).contains(-1));
+            fs = new MyFileSystem();
+        }
+
+        @Test
+        public void testCheckpointWhenFull() throws IOException {
+            // Each commit of a new file takes 4 journal blocks (a
+            // descriptor, the superblock, the inode block and the
+            // commit), so this wraps the 10-block journal many times
+            int inumber = 0;
+            for(int i = 0; i < 20; ++i) {
+                int fd = fs.create();
+                assertEquals(1, fs.write(fd, new byte[] { (byte)i }));
+                inumber = fs.inumber(fd);
+                assertEquals(0, fs.close(fd));
+                if(i % 2 == 0)
+                    assertEquals(0, fs.delete(inumber));
+            }
+            fs.shutdown();
+            fs = new MyFileSystem();
+            int fd = fs.open(inumber);
+            byte[] foo = new byte[1];
+            assertEquals(1, fs.read(fd, foo));
+            assertEquals(19, foo[0]);
+        }
+    }
+
+    public static class Concurrency {
+        private static final int THREADS = 4;
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(2000, 10, 32);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        /**
+         * Something to do in each of THREADS threads at once.
+         */
+        private interface Job {
+            void run(int thread) throws Exception;
+        }
+
+        /**
+         * Run a job in THREADS threads and rethrow the first failure.
+         */
+        private void runThreads(final Job job) throws Exception {
+            final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[THREADS];
+            for(int t = 0; t < THREADS; ++t) {
+                final int thread = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            job.run(thread);
+                        } catch(Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for(Thread thread : threads)
+                thread.join();
+            if(failure.get() instanceof Exception)
+                throw (Exception)failure.get();
+            if(failure.get() != null)
+                throw (Error)failure.get();
+        }
+
+        private static byte[] pattern(int seed, int len) {
+            byte[] buf = new byte[len];
+            for(int i = 0; i < len; ++i)
+                buf[i] = (byte)(seed * 31 + i);
+            return buf;
+        }
+
+        @Test
+        public void testIndependentFiles() throws Exception {
+            final int[] inumbers = new int[THREADS];
+            runThreads(new Job() {
+                public void run(int t) throws Exception {
+                    // Writes of odd sizes mix whole-block extents with
+                    // partial blocks
+                    byte[] data = pattern(t, 40 * Disk.BLOCK_SIZE + 123);
+                    int fd = fs.create();
+                    inumbers[t] = fs.inumber(fd);
+                    for(int off = 0; off < data.length; off += 1000) {
+                        int len = Math.min(1000, data.length - off);
+                        assertEquals(len, fs.write(fd,
+                            Arrays.copyOfRange(data, off, off + len)));
+                    }
+                    assertEquals(0, fs.close(fd));
+
+                    fd = fs.open(inumbers[t]);
+                    byte[] foo = new byte[data.length];
+                    assertEquals(data.length, fs.read(fd, foo));
+                    assertArrayEquals(data, foo);
+                    assertEquals(0, fs.close(fd));
+                }
+            });
+
+            // Every file must survive a remount with its own contents,
+            // so no block went to two files
+            fs.shutdown();
+            fs = new MyFileSystem();
+            for(int t = 0; t < THREADS; ++t) {
+                byte[] data = pattern(t, 40 * Disk.BLOCK_SIZE + 123);
+                int fd = fs.open(inumbers[t]);
+                byte[] foo = new byte[data.length];
+                assertEquals(data.length, fs.read(fd, foo));
+                assertArrayEquals(data, foo);
+                assertEquals(0, fs.close(fd));
+            }
+        }
+
+        @Test
+        public void testSharedReaders() throws Exception {
+            final byte[] data = pattern(7, 300 * Disk.BLOCK_SIZE);
+            int fd = fs.create();
+            final int inumber = fs.inumber(fd);
+            assertEquals(data.length, fs.write(fd, data));
+            assertEquals(0, fs.close(fd));
+
+            runThreads(new Job() {
+                public void run(int t) throws Exception {
+                    int fd = fs.open(inumber);
+                    byte[] foo = new byte[777];
+                    for(int round = 0; round < 20; ++round) {
+                        int at = (round * 4099 + t * 1013) % (data.length - foo.length);
+                        assertEquals(at, fs.seek(fd, at, Whence.SEEK_SET));
+                        assertEquals(foo.length, fs.read(fd, foo));
+                        assertArrayEquals(Arrays.copyOfRange(data, at, at + foo.length), foo);
+                    }
+                    assertEquals(0, fs.close(fd));
+                }
+            });
+        }
+
+        @Test
+        public void testPreadSharedFd() throws Exception {
+            final byte[] data = pattern(3, 100 * Disk.BLOCK_SIZE);
+            final int fd = fs.create();
+            assertEquals(data.length, fs.write(fd, data));
+
+            // Every thread reads through the same descriptor
+            runThreads(new Job() {
+                public void run(int t) throws Exception {
+                    byte[] foo = new byte[1500];
+                    for(int round = 0; round < 50; ++round) {
+                        int at = (round * 7919 + t * 2003) % (data.length - foo.length);
+                        assertEquals(foo.length, fs.pread(fd, foo, 0, foo.length, at));
+                        assertArrayEquals(Arrays.copyOfRange(data, at, at + foo.length), foo);
+                    }
+                }
+            });
+            assertEquals(data.length, fs.seek(fd, 0, Whence.SEEK_CUR));
+        }
+
+        @Test
+        public void testCreateDeleteChurn() throws Exception {
+            runThreads(new Job() {
+                public void run(int t) throws Exception {
+                    for(int round = 0; round < 30; ++round) {
+                        byte[] data = pattern(t + round, (round % 15 + 1) * 600);
+                        int fd = fs.create();
+                        int inumber = fs.inumber(fd);
+                        assertEquals(data.length, fs.write(fd, data));
+                        assertEquals(0, fs.seek(fd, 0, Whence.SEEK_SET));
+                        byte[] foo = new byte[data.length];
+                        assertEquals(data.length, fs.read(fd, foo));
+                        assertArrayEquals(data, foo);
+                        assertEquals(0, fs.close(fd));
+                        assertEquals(0, fs.delete(inumber));
+                    }
+                }
+            });
+
+            // Everything was freed: the first data block is free again
+            assertEquals(fs.superBlock.dblock0(), fs.freeMap.find());
+        }
+    }
+
+    public static class Prefetching {
+        private MyFileSystem fs;
+
+        @Before
+        public void setUp() throws IOException {
+            deleteDisk();
+            fs = new MyFileSystem();
+            fs.formatDisk(2000, 5);
+        }
+
+        @After
+        public void tearDown() throws IOException {
+            fs.shutdown();
+        }
+
+        @Test
+        public void testWindow() {
+            ReadAhead ra = new ReadAhead();
+
+            // The first read asks for itself and a window after it
+            assertEquals(5, ra.access(0, 512, 1000));
+            assertEquals(0, ra.getStart());
+            assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+
+            // Each sequential read doubles the window and asks for the
+            // blocks up to a window ahead that were not asked for yet
+            assertEquals(5, ra.access(512, 512, 1000));
+            assertEquals(5, ra.getStart());
+            assertEquals(8, ra.getWindow());
+            assertEquals(9, ra.access(1024, 512, 1000));
+            assertEquals(10, ra.getStart());
+            for(int i = 3; i < 6; ++i)
+                ra.access(i * 512, 512, 1000);
+            assertEquals(ReadAhead.MAX_WINDOW, ra.getWindow());
+
+            // Nothing more while more than half a window is ahead
+            assertEquals(0, ra.access(6 * 512, 512, 1000));
+
+            // Never past the end of the file
+            assertEquals(0, ra.access(7 * 512, 512, 60));
+
+            // A random read collapses the window
+            assertEquals(0, ra.access(196 * 512, 512, 1000));
+            assertEquals(0, ra.getWindow());
+            assertEquals(ReadAhead.MIN_WINDOW + 1, ra.access(197 * 512, 512, 1000));
+            assertEquals(197, ra.getStart());
+        }
+
+        @Test
+        public void testStreamAfterRemount() throws IOException {
+            byte[] data = new byte[300 * Disk.BLOCK_SIZE + 77];
+            for(int i = 0; i < data.length; ++i)
+                data[i] = (byte)(i * 7 + i / 300);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            assertEquals(data.length, fs.write(fd, data));
+            fs.shutdown();
+            fs = new MyFileSystem();
+
+            // Read it all in odd-sized chunks, jumping once to make the
+            // window collapse and grow again
+            fd = fs.open(inumber);
+            byte[] foo = new byte[700];
+            int at = 0, n;
+            boolean jumped = false;
+            while((n = fs.read(fd, foo)) > 0) {
+                for(int i = 0; i < n; ++i)
+                    assertEquals(data[at + i], foo[i]);
+                at += n;
+                if(at == 70000 && ! jumped) {
+                    at = (int)fs.seek(fd, 35000, Whence.SEEK_SET);
+                    jumped = true;
+                }
+            }
+            assertEquals(data.length, at);
+        }
+    }
+
+    public static class AsyncIO {
+        private Disk disk;
+        private AsyncDisk async;
+
+        @Before
+        public void setUp() {
+            deleteDisk();
+            disk  = new Disk();
+            async = new AsyncDisk(disk);
+        }
+
+        @After
+        public void tearDown() {
+            async.stop();
+            disk.stop();
+        }
+
+        private static byte[] block(int seed) {
+            byte[] b = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(b, (byte)seed);
+            return b;
+        }
+
+        @Test
+        public void testMergeAdjacent() throws Exception {
+            // Out of order, while plugged: one sorted transfer for 8..15
+            async.plug();
+            List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+            for(int i : new int[] { 12, 9, 15, 8, 11, 14, 10, 13 })
+                done.add(async.write(i, 1, block(i), 0));
+            assertEquals(8, async.getQueueDepth());
+            async.unplug();
+            for(CompletableFuture<Void> f : done)
+                f.get();
+            assertEquals(0, async.getQueueDepth());
+            assertEquals(8, async.getMaxQueueDepth());
+            assertEquals(1, async.getTransfers());
+            assertEquals(8.0, async.getMergeRatio(), 0.0);
+
+            byte[] run = new byte[8 * Disk.BLOCK_SIZE];
+            disk.read(8, 8, run, 0);
+            for(int i = 0; i < run.length; ++i)
+                assertEquals((byte)(8 + i / Disk.BLOCK_SIZE), run[i]);
+
+            // Merged reads fill each buffer from its own position
+            async.plug();
+            ByteBuffer a = ByteBuffer.allocateDirect(2 * Disk.BLOCK_SIZE);
+            ByteBuffer b = ByteBuffer.allocate(Disk.BLOCK_SIZE + 3);
+            b.position(3);
+            CompletableFuture<Void> fa = async.read(8, 2, a);
+            CompletableFuture<Void> fb = async.read(10, 1, b);
+            async.unplug();
+            CompletableFuture.allOf(fa, fb).get();
+            assertEquals(2, async.getTransfers());
+            assertEquals(0, a.position());
+            assertEquals(9, a.get(Disk.BLOCK_SIZE));
+            assertEquals(3, b.position());
+            assertEquals(10, b.get(3));
+        }
+
+        @Test
+        public void testOverlapKeepsOrder() throws Exception {
+            async.plug();
+            async.write(40, 1, block(1), 0);
+            byte[] got = new byte[4 * Disk.BLOCK_SIZE];
+            CompletableFuture<Void> read = async.read(38, 4, got, 0);
+            async.write(40, 1, block(2), 0);
+            async.unplug();
+            read.get();
+            assertEquals(1, got[2 * Disk.BLOCK_SIZE]);
+            async.stop();
+            byte[] now = new byte[Disk.BLOCK_SIZE];
+            disk.read(40, now);
+            assertEquals(2, now[0]);
+        }
+
+        @Test
+        public void testBadRequest() {
+            try {
+                async.read(Disk.NUM_BLOCKS - 1, 2, new byte[2 * Disk.BLOCK_SIZE], 0);
+                fail("read past the end of the disk");
+            } catch(RuntimeException e) {
+            }
+            try {
+                async.write(0, 2, ByteBuffer.allocate(Disk.BLOCK_SIZE));
+                fail("buffer too small");
+            } catch(RuntimeException e) {
+            }
+            assertEquals(0, async.getQueueDepth());
+        }
+    }
+
     public static class Indirection {
         private MyFileSystem fs;
         
@@ -379,6 +2054,80 @@ public class TestMyFileSystem {
             assertTrue(Arrays.equals(bar, foo));
         }
         
+        @Test
+        public void testIndirectBlockPutTwice() throws IOException {
+            fs.formatDisk(100, 2);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 13];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(buf.length, fs.write(fd, buf));
+            assertEquals(0, fs.close(fd));
+
+            // Two readers missed the cache; the second one to put the
+            // block gets the first one's, which both fds share
+            fd = fs.open(inumber);
+            int fd2 = fs.open(inumber);
+            int single = fs.inodeTable.get(inumber).ptr[10];
+            IndirectBlock first = new IndirectBlock();
+            fs.disk.read(single, first);
+            assertSame(first, fs.fileTable.putIndirectBlock(fd, single, first));
+            assertSame(first, fs.fileTable.putIndirectBlock(fd2, single, new IndirectBlock()));
+            assertSame(first, fs.fileTable.getIndirectBlock(fd2, single));
+            assertNull(fs.fileTable.putIndirectBlock(FileTable.MAX_FILES - 1, single, first));
+
+            // A pointer set through it is written back
+            byte[] b = { 'b' };
+            assertEquals(1, fs.pwrite(fd2, b, 0, 1, Disk.BLOCK_SIZE * 14));
+            assertEquals(0, fs.close(fd2));
+            assertEquals(0, fs.close(fd));
+            fs.shutdown();
+            fs = new MyFileSystem();
+            fd = fs.open(inumber);
+            assertEquals(1, fs.pread(fd, b, 0, 1, Disk.BLOCK_SIZE * 14));
+            assertEquals('b', b[0]);
+        }
+
+        @Test
+        public void testIndirectBlockSharedByFds() throws IOException {
+            fs.formatDisk(100, 2);
+            int fd = fs.create();
+            int inumber = fs.inumber(fd);
+            byte[] buf = new byte[Disk.BLOCK_SIZE * 13];
+            Arrays.fill(buf, (byte)'a');
+            assertEquals(buf.length, fs.write(fd, buf));
+            int single = fs.inodeTable.get(inumber).ptr[10];
+            fs.shutdown();
+
+            // Without a block cache every read is a physical one
+            final List<Integer> reads = new ArrayList<Integer>();
+            Disk disk = new Disk(0) {
+                protected void readBlocks(int blocknum, int count, ByteBuffer buffer)
+                    throws IOException {
+                    for(int i = 0; i < count; ++i)
+                        reads.add(blocknum + i);
+                    super.readBlocks(blocknum, count, buffer);
+                }
+            };
+            fs = new MyFileSystem(disk);
+            fd = fs.open(inumber);
+            int fd2 = fs.open(inumber);
+            byte[] b = new byte[1];
+            reads.clear();
+            assertEquals(1, fs.pread(fd, b, 0, 1, Disk.BLOCK_SIZE * 11));
+            assertTrue(reads.contains(single));
+
+            // The other fd finds it in the file's cache
+            reads.clear();
+            assertEquals(1, fs.pread(fd2, b, 0, 1, Disk.BLOCK_SIZE * 12));
+            assertEquals('a', b[0]);
+            assertFalse(reads.contains(single));
+            assertSame(fs.fileTable.getIndirectBlock(fd, single),
+                       fs.fileTable.getIndirectBlock(fd2, single));
+            assertEquals(0, fs.close(fd2));
+            assertEquals(0, fs.close(fd));
+        }
+
         @Test
         public void testHoleInSinglelIndirect() throws IOException {
         	fs.formatDisk(100, 2);
@@ -503,7 +2252,7 @@ public class TestMyFileSystem {
         	//At this point, we should have 1 block left (remember the superblock)
         	int fd3 = fs.create();
         	byte[] foo = new byte[Disk.BLOCK_SIZE];
-        	Arrays.fill(buf, (byte)'C');
+        	Arrays.fill(foo, (byte)'C');
         	assertEquals(130*Disk.BLOCK_SIZE, fs.seek(fd3, 130*Disk.BLOCK_SIZE, Whence.SEEK_SET));
         	assertEquals(-1, fs.write(fd3, foo));        	
         }
@@ -604,6 +2353,43 @@ public class TestMyFileSystem {
             assertEquals(-1, fs.write(fd, buf));
         }
         
+        @Test
+        public void testLargeFileSurvivesRemount() throws IOException {
+        	fs.formatDisk(20000, 2);
+        	int fd = fs.create();
+        	int inumber = fs.inumber(fd);
+
+        	int size = (10 + IndirectBlock.COUNT + IndirectBlock.COUNT * IndirectBlock.COUNT + 100) * Disk.BLOCK_SIZE;
+        	byte[] buf = new byte[size];
+        	for(int i = 0; i < size; ++i)
+        		buf[i] = (byte)(i / Disk.BLOCK_SIZE);
+        	assertEquals(size, fs.write(fd, buf));
+        	fs.shutdown();
+
+        	fs = new MyFileSystem();
+        	fd = fs.open(inumber);
+        	byte[] foo = new byte[size];
+        	assertEquals(size, fs.read(fd, foo));
+        	assertTrue(Arrays.equals(buf, foo));
+        }
+
+        @Test
+        public void testDeleteFreesIndirectBlocks() throws IOException {
+        	fs.formatDisk(600, 2);
+        	byte[] buf = new byte[(10 + IndirectBlock.COUNT * 3) * Disk.BLOCK_SIZE];
+        	Arrays.fill(buf, (byte)'a');
+
+        	// Each file needs more than half of the disk, so the second
+        	// one only fits if deleting the first freed all its blocks
+        	for(int i = 0; i < 2; ++i) {
+        		int fd = fs.create();
+        		int inumber = fs.inumber(fd);
+        		assertEquals(buf.length, fs.write(fd, buf));
+        		fs.close(fd);
+        		assertEquals(0, fs.delete(inumber));
+        	}
+        }
+
         @Test
         public void testIndirection() throws IOException {
         	fs.formatDisk(20000, 2);
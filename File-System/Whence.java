@@ -3,8 +3,8 @@ package fileSystem;
  * Determines the position from whence a seek operation should
  * start. In other words, when you seek by an offset, that offset is
  * relative to some position in the file. This enum defines names for
- * each of the three types of positions relative to which you can
- * seek. The three types are as follows:
+ * each of the types of positions relative to which you can seek. The
+ * types are as follows:
  *
  * <dl>
  *   <dt>SEEK_SET</dt>
@@ -13,6 +13,18 @@ package fileSystem;
  *   <dd>Seek relative to the current position in the file</dd>
  *   <dt>SEEK_END</dt>
  *   <dd>Seek relative to the end of the file</dd>
+ *   <dt>SEEK_DATA</dt>
+ *   <dd>Seek to the first byte at or after offset (relative to the
+ *       beginning of the file) that is in a block holding data</dd>
+ *   <dt>SEEK_HOLE</dt>
+ *   <dd>Seek to the first byte at or after offset (relative to the
+ *       beginning of the file) that is in a hole, or to the end of
+ *       the file if there is no hole after offset</dd>
  * </dl>
+ *
+ * SEEK_DATA and SEEK_HOLE let a program copying a sparse file skip
+ * its holes. Holes are whole blocks that were never written with
+ * anything but zeros; both fail if offset is not before the end of
+ * the file.
  */
-public enum Whence { SEEK_SET, SEEK_CUR, SEEK_END }
+public enum Whence { SEEK_SET, SEEK_CUR, SEEK_END, SEEK_DATA, SEEK_HOLE }